@@ -35,6 +35,10 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Sets;
 import com.google.gson.Gson;
+import common.api.ConcurrentMoves;
+import common.api.DirListing;
+import common.api.MoveRequest;
+import common.api.MoveResult;
 
 import dropbox.client.FileMoveCollisionException;
 import dropbox.client.InvalidTokenException;
@@ -127,14 +131,50 @@ public class BoxClientImpl implements BoxClient {
 
     @Override
     public void move(String from, String to) throws FileMoveCollisionException, InvalidTokenException {
-        Logger.info("Move from %s to %s", from, to);
         Preconditions.checkNotNull(from);
         Preconditions.checkNotNull(to);
+        MoveResult result = moveOne(new MoveRequest(from, to));
+        if (result.status == MoveResult.Status.COLLISION) {
+            throw new FileMoveCollisionException(result.error);
+        }
+    }
+
+    /**
+     * Box has no batch move, moves are made concurrently instead. Missing
+     * destination folders are created up front so that concurrent moves
+     * don't race to create the same folder.
+     */
+    @Override
+    public List<MoveResult> moveBatch(List<MoveRequest> moves) throws InvalidTokenException {
+        Set<String> parents = Sets.newLinkedHashSet();
+        for (MoveRequest move : moves) {
+            parents.add(RuleUtils.getParent(move.to));
+        }
+
+        for (String parent : parents) {
+            if (getItem(parent) == null) {
+                Logger.warn("BoxClient.moveBatch: Parent folder missing: %s", parent);
+                mkdirItem(parent);
+            }
+        }
+
+        return ConcurrentMoves.moveAll(moves, new ConcurrentMoves.Mover() {
+            @Override
+            public MoveResult move(MoveRequest request) throws InvalidTokenException {
+                return moveOne(request);
+            }
+        });
+    }
+
+    private MoveResult moveOne(MoveRequest move) throws InvalidTokenException {
+        String from = move.from;
+        String to = move.to;
+        Logger.info("Move from %s to %s", from, to);
         String fromId = getId(from);
         if (fromId == null) {
             Logger.error("Failed to move file from %s to %s. Cannot resolve from file id.",
                          from, to);
-            return;
+            return MoveResult.failure(move, "Cannot resolve from file id");
         }
 
         String parent = RuleUtils.getParent(to);
@@ -145,13 +185,13 @@ public class BoxClientImpl implements BoxClient {
 
             if (toItem == null) {
                 Logger.error("Cannot move file, failed creating parent.");
-                return;
+                return MoveResult.failure(move, "Failed creating parent");
             }
         }
 
         if (! toItem.isFolder()) {
             Logger.error("Cannot move, parent item is not a folder. Parent: %s Item: %s", parent, toItem);
-            return;
+            return MoveResult.failure(move, "Parent is not a folder");
         }
 
         Logger.info("Attempting to move file from: %s(%s) To: %s(%s)", from, fromId, RuleUtils.getParent(to), toItem);
@@ -167,14 +207,16 @@ public class BoxClientImpl implements BoxClient {
             invalidate(to);
             Logger.info("Successfully moved file from %s to %s. File: %s",
                         from, to, file);
-            return;
+            return MoveResult.success(move);
         }
 
-        Logger.error("Failed moving from %s to %s Error: %s", from, to, getError(resp));
+        String err = getError(resp);
+        Logger.error("Failed moving from %s to %s Error: %s", from, to, err);
         // 400 indicates file name collision
         if (Integer.valueOf(400).equals(resp.getStatus())) {
-            throw new FileMoveCollisionException(String.format("From: %s To: %s", from, to));
+            return MoveResult.collision(move, String.format("From: %s To: %s", from, to));
         }
+        return MoveResult.failure(move, err);
     }
 
     @Override
@@ -198,6 +240,15 @@ public class BoxClientImpl implements BoxClient {
         return ret;
     }
 
+    /**
+     * Box folders have no version we could compare against, so this is
+     * always a full listing.
+     */
+    @Override
+    public DirListing listDirIfChanged(String path, String hash) throws InvalidTokenException, NotADirectoryException {
+        return new DirListing(listDir(path), null);
+    }
+
     @Override
     public boolean mkdir(String path) throws InvalidTokenException {
         return mkdirItem(path) != null;
@@ -1,7 +1,9 @@
 package common.api;
 
+import java.util.List;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import play.libs.WS.HttpResponse;
@@ -29,6 +31,18 @@ public interface ApiClient {
      * @throws InvalidTokenException if OAuth token for the current user is not valid
      */
     void move(String from, String to) throws FileMoveCollisionException, InvalidTokenException;
+
+    /**
+     * Moves a number of files or folders. Failing to move one of them does
+     * not affect the others.
+     *
+     * @param moves moves to perform, no two of them should have the same
+     * destination
+     * @return result of each move, in the same order as the requests
+     *
+     * @throws InvalidTokenException if OAuth token for the current user is not valid
+     */
+    @Nonnull List<MoveResult> moveBatch(List<MoveRequest> moves) throws InvalidTokenException;
     
     /**
      * Get all files, excluding directories, inside the given directory.
@@ -51,6 +65,20 @@ public interface ApiClient {
      */
     @Nonnull Set<String> listDir(String path, ApiClient.ListingType listingType) throws InvalidTokenException, NotADirectoryException;
 
+    /**
+     * Get all files, excluding directories, inside the given directory unless
+     * the directory is unchanged since an earlier listing.
+     *
+     * @param path path to the directory with the leading /
+     * @param hash {@link DirListing#hash} of an earlier listing, null to
+     * always get a listing
+     * @return files inside the directory, null if the directory has not
+     * changed since the listing with the given hash
+     *
+     * @throws InvalidTokenException if OAuth token for the current user is not valid
+     */
+    @CheckForNull DirListing listDirIfChanged(String path, @CheckForNull String hash) throws InvalidTokenException, NotADirectoryException;
+
     /**
      * Create a directory at the specified location 
      * @param path the full path of the directory to create
@@ -0,0 +1,112 @@
+package common.api;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import play.Play;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import common.concurrent.RequestThreads;
+
+import dropbox.client.InvalidTokenException;
+
+/**
+ * {@link ApiClient#moveBatch(List)} for services without a batch endpoint:
+ * every file is moved with its own API call, with up to
+ * {@link #MOVE_THREADS} calls in flight.
+ */
+public class ConcurrentMoves {
+    /** Maximum number of moves in flight for a single batch. */
+    private static final int MOVE_THREADS = Play.configuration == null ? 4 :
+        Integer.parseInt(Play.configuration.getProperty("sortbox.move_threads", "4"));
+
+    /**
+     * Moves a single file.
+     */
+    public static interface Mover {
+        MoveResult move(MoveRequest request) throws InvalidTokenException;
+    }
+
+    /**
+     * Moves already made are still reported if the thread is interrupted,
+     * the ones not made by then are reported as failed and the interrupt
+     * flag is left set for the caller to act on.
+     *
+     * @return results in the same order as the requests
+     * @throws InvalidTokenException if any of the moves failed because of an
+     *         invalid OAuth token
+     */
+    public static List<MoveResult> moveAll(List<MoveRequest> requests, final Mover mover)
+            throws InvalidTokenException {
+        List<MoveResult> results = Lists.newArrayListWithCapacity(requests.size());
+        if ((requests.size() <= 1) || (MOVE_THREADS <= 1)) {
+            for (MoveRequest request : requests) {
+                results.add(Thread.currentThread().isInterrupted() ?
+                            interrupted(request) :
+                            mover.move(request));
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MOVE_THREADS, requests.size()),
+                                                                RequestThreads.factory());
+        try {
+            List<Future<MoveResult>> moves = Lists.newArrayListWithCapacity(requests.size());
+            for (final MoveRequest request : requests) {
+                moves.add(executor.submit(new Callable<MoveResult>() {
+                    @Override
+                    public MoveResult call() throws InvalidTokenException {
+                        return mover.move(request);
+                    }
+                }));
+            }
+
+            for (Future<MoveResult> move : moves) {
+                try {
+                    results.add(move.get());
+                } catch (InterruptedException e) {
+                    executor.shutdownNow();
+                    for (int i = results.size(); i < moves.size(); i++) {
+                        results.add(getIfDone(moves.get(i), requests.get(i)));
+                    }
+                    Thread.currentThread().interrupt();
+                    return results;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), InvalidTokenException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * @return result of a move that finished successfully, a failure for one
+     *         that was called off or failed
+     */
+    private static MoveResult getIfDone(Future<MoveResult> move, MoveRequest request) {
+        if (move.isDone() && ! move.isCancelled()) {
+            try {
+                return move.get();
+            } catch (InterruptedException e) {
+                // Can't happen, the move is done and the flag is clear
+            } catch (ExecutionException e) {
+                return MoveResult.failure(request, String.valueOf(e.getCause()));
+            }
+        }
+        return interrupted(request);
+    }
+
+    private static MoveResult interrupted(MoveRequest request) {
+        return MoveResult.failure(request, "Interrupted");
+    }
+
+    private ConcurrentMoves() {}
+}
@@ -0,0 +1,26 @@
+package common.api;
+
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Files in a directory, see {@link ApiClient#listDirIfChanged(String, String)}.
+ */
+public class DirListing {
+    /** Full paths of the files, excluding directories, in the directory. */
+    public final Set<String> files;
+
+    /**
+     * Opaque version of the directory contents, null if the service does not
+     * provide one.
+     */
+    public final @CheckForNull String hash;
+
+    public DirListing(Set<String> files, @CheckForNull String hash) {
+        this.files = Preconditions.checkNotNull(files);
+        this.hash = hash;
+    }
+}
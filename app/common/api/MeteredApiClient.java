@@ -0,0 +1,86 @@
+package common.api;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+
+import play.libs.WS.HttpResponse;
+
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.common.base.Preconditions;
+
+import dropbox.client.FileMoveCollisionException;
+import dropbox.client.InvalidTokenException;
+import dropbox.client.NotADirectoryException;
+
+/**
+ * Counts the calls made through another {@link ApiClient}. A batch of moves
+ * counts as one call per move since that is what it costs the service.
+ */
+public class MeteredApiClient implements ApiClient {
+    private final ApiClient delegate;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    public MeteredApiClient(ApiClient delegate) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+    }
+
+    /**
+     * @return number of calls made so far
+     */
+    public int getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public void move(String from, String to) throws FileMoveCollisionException, InvalidTokenException {
+        calls.incrementAndGet();
+        delegate.move(from, to);
+    }
+
+    @Override
+    public List<MoveResult> moveBatch(List<MoveRequest> moves) throws InvalidTokenException {
+        calls.addAndGet(moves.size());
+        return delegate.moveBatch(moves);
+    }
+
+    @Override
+    public Set<String> listDir(String path) throws InvalidTokenException, NotADirectoryException {
+        calls.incrementAndGet();
+        return delegate.listDir(path);
+    }
+
+    @Override
+    public Set<String> listDir(String path, ListingType listingType)
+            throws InvalidTokenException, NotADirectoryException {
+        calls.incrementAndGet();
+        return delegate.listDir(path, listingType);
+    }
+
+    @Override
+    public DirListing listDirIfChanged(String path, @CheckForNull String hash)
+            throws InvalidTokenException, NotADirectoryException {
+        calls.incrementAndGet();
+        return delegate.listDirIfChanged(path, hash);
+    }
+
+    @Override
+    public boolean mkdir(String path) throws InvalidTokenException {
+        calls.incrementAndGet();
+        return delegate.mkdir(path);
+    }
+
+    @Override
+    public boolean exists(String path) throws InvalidTokenException {
+        calls.incrementAndGet();
+        return delegate.exists(path);
+    }
+
+    @Override
+    public HttpResponse debug(HTTPMethod method, String url) throws InvalidTokenException {
+        calls.incrementAndGet();
+        return delegate.debug(method, url);
+    }
+}
@@ -0,0 +1,43 @@
+package common.api;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Request to move a single file, see {@link ApiClient#moveBatch(java.util.List)}.
+ */
+public class MoveRequest {
+    /** Path of the file or folder to move. */
+    public final String from;
+
+    /** Fully qualified new path, including the name of the file or folder itself. */
+    public final String to;
+
+    public MoveRequest(String from, String to) {
+        this.from = Preconditions.checkNotNull(from, "From path can't be null");
+        this.to = Preconditions.checkNotNull(to, "To path can't be null");
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof MoveRequest))
+            return false;
+        MoveRequest other = (MoveRequest) obj;
+        return from.equals(other.from) && to.equals(other.to);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(from, to);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(MoveRequest.class)
+                      .add("from", from)
+                      .add("to", to)
+                      .toString();
+    }
+}
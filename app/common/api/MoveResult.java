@@ -0,0 +1,52 @@
+package common.api;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Outcome of a single {@link MoveRequest}.
+ */
+public class MoveResult {
+    public static enum Status {
+        SUCCESS,
+        /** There is already another file with the same name at the destination. */
+        COLLISION,
+        /** Any other failure, the file was not moved. */
+        FAILURE;
+    }
+
+    public final MoveRequest request;
+    public final Status status;
+
+    /** Error reported by the service, null on success. */
+    public final @CheckForNull String error;
+
+    public MoveResult(MoveRequest request, Status status, @CheckForNull String error) {
+        this.request = Preconditions.checkNotNull(request);
+        this.status = Preconditions.checkNotNull(status);
+        this.error = error;
+    }
+
+    public static MoveResult success(MoveRequest request) {
+        return new MoveResult(request, Status.SUCCESS, null);
+    }
+
+    public static MoveResult collision(MoveRequest request, String error) {
+        return new MoveResult(request, Status.COLLISION, error);
+    }
+
+    public static MoveResult failure(MoveRequest request, String error) {
+        return new MoveResult(request, Status.FAILURE, error);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(MoveResult.class)
+                      .add("request", request)
+                      .add("status", status)
+                      .add("error", error)
+                      .toString();
+    }
+}
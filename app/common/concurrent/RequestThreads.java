@@ -0,0 +1,33 @@
+package common.concurrent;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.appengine.api.ThreadManager;
+
+/**
+ * Threads for doing work in parallel while serving a request.
+ */
+public class RequestThreads {
+    /**
+     * On App Engine only request threads can make API calls, and they have
+     * to finish before the current request does. Outside of a request (unit
+     * tests, benchmarks) there is no such factory and plain threads are
+     * used instead.
+     *
+     * @return factory for threads tied to the current request
+     */
+    public static ThreadFactory factory() {
+        try {
+            ThreadFactory factory = ThreadManager.currentRequestThreadFactory();
+            if (factory != null) {
+                return factory;
+            }
+        } catch (RuntimeException e) {
+            // No App Engine environment for this thread
+        }
+        return Executors.defaultThreadFactory();
+    }
+
+    private RequestThreads() {}
+}
@@ -0,0 +1,149 @@
+package common.stats;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Estimates the number of distinct values added to it in a fixed amount of
+ * memory, see Flajolet et al., "HyperLogLog: the analysis of a near-optimal
+ * cardinality estimation algorithm".
+ * <p>
+ * Each value is hashed to 64 bits. The first {@link #PRECISION} bits pick a
+ * register, which keeps the longest run of leading zeros seen in the rest of
+ * the hash. With 4096 one byte registers the standard error is about 1.6%.
+ * Sketches of different sets are merged by taking the largest value of each
+ * register, the result is the sketch of their union.
+ */
+public class HyperLogLog implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int PRECISION = 12;
+
+    /** Number of registers, also the size of the serialized sketch. */
+    public static final int NUM_REGISTERS = 1 << PRECISION;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / NUM_REGISTERS);
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(new byte[NUM_REGISTERS]);
+    }
+
+    private HyperLogLog(byte[] registers) {
+        this.registers = registers;
+    }
+
+    /**
+     * @param bytes registers as returned by {@link #toBytes()}
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length == NUM_REGISTERS,
+                                    "Expected %s registers, got %s", NUM_REGISTERS, bytes.length);
+        return new HyperLogLog(bytes.clone());
+    }
+
+    public byte[] toBytes() {
+        return registers.clone();
+    }
+
+    /**
+     * Add a value, values are compared by their string representation.
+     *
+     * @return true if the sketch changed
+     */
+    public boolean add(Object value) {
+        return addHash(hash(value.toString()));
+    }
+
+    /**
+     * @param hash uniformly distributed 64 bit hash of the value
+     * @return true if the sketch changed
+     */
+    public boolean addHash(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        // The sentinel bit bounds the run of zeros when the rest is all 0
+        long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add all values of another sketch to this one.
+     *
+     * @return true if the sketch changed
+     */
+    public boolean merge(HyperLogLog other) {
+        boolean changed = false;
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = ALPHA * NUM_REGISTERS * NUM_REGISTERS / sum;
+        // Linear counting is more accurate while many registers are empty
+        if ((estimate <= 2.5 * NUM_REGISTERS) && (zeros > 0)) {
+            estimate = NUM_REGISTERS * Math.log((double) NUM_REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * 64 bit FNV-1a of the characters, followed by the MurmurHash3 finalizer
+     * so that all the bits are well mixed.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof HyperLogLog) && Arrays.equals(registers, ((HyperLogLog) obj).registers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(registers);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(HyperLogLog.class)
+            .add("estimate", estimate())
+            .toString();
+    }
+}
@@ -53,6 +53,7 @@ public class Accounts extends Controller {
             }
 
     	    u.sortingFolder = folder;
+    	    u.sortingFolderHash = null;
     	    String createdFolderMsg = createdFolder ? " This folder didn't exist, so we created it for you." : "";
     	    flash.success("%s is now your sorting folder.%s", folder, createdFolderMsg);
     	    u.save();
@@ -10,7 +10,7 @@ import models.User;
 import play.Logger;
 import play.mvc.Controller;
 import play.mvc.With;
-import rules.RuleUtils;
+import rules.InteractiveSort;
 
 import com.google.common.collect.Lists;
 import com.google.gson.Gson;
@@ -29,8 +29,8 @@ public class Rules extends Controller {
             User user = Login.getUser();
             List<List<RuleError>> allErrors = Lists.newArrayList();
             if (Rule.replace(user, ruleList, allErrors)) {
-                Logger.info("New rules inserted with no errors so running rules.");
-                RuleUtils.runRules(user);
+                Logger.info("New rules inserted with no errors so queueing a sort.");
+                InteractiveSort.submit(user);
             }
 
             renderJSON(allErrors);
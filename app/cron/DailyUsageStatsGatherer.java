@@ -3,12 +3,8 @@ package cron;
 import java.util.Date;
 import java.util.Map;
 
+import models.DailyCounters;
 import models.DailyUsageStats;
-import models.DatastoreUtil;
-import models.FileMove;
-import models.Rule;
-import models.User;
-import models.UserStatsUtil;
 
 import org.joda.time.DateTime;
 
@@ -26,10 +22,10 @@ public class DailyUsageStatsGatherer implements Job {
         Date to = DateTime.now().toDateMidnight().toDate();
         Date from = DateTime.now().minusDays(1).toDateMidnight().toDate();  
 
-        long usersDelta = DatastoreUtil.count("created", from, to, User.all());
-        long rulesDelta = DatastoreUtil.count("created", from, to, Rule.all());
-        long fileMovesDelta = DatastoreUtil.count("when", from, to, FileMove.all());
-        long uniqueFileMoveUsersDelta = UserStatsUtil.countUniqueFileMoveUsers("when", from, FileMove.all());
+        long usersDelta = DailyCounters.users(from).get();
+        long rulesDelta = DailyCounters.rules(from).get();
+        long fileMovesDelta = DailyCounters.fileMoves(from).get();
+        long uniqueFileMoveUsersDelta = DailyCounters.countFileMoveUsers(from, to);
         
         DailyUsageStats delta = new DailyUsageStats(usersDelta, rulesDelta, fileMovesDelta, uniqueFileMoveUsersDelta);
         delta.save();
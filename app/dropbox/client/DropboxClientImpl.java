@@ -1,8 +1,11 @@
 package dropbox.client;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
+
 import oauth.signpost.OAuth;
 import play.Logger;
 import play.libs.OAuth.ServiceInfo;
@@ -17,6 +20,10 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.gson.Gson;
 import common.api.ApiClient;
+import common.api.ConcurrentMoves;
+import common.api.DirListing;
+import common.api.MoveRequest;
+import common.api.MoveResult;
 
 import dropbox.Dropbox;
 import dropbox.DropboxURLs;
@@ -31,7 +38,12 @@ import dropbox.gson.DbxMetadata;
  */
 class DropboxClientImpl implements DropboxClient {
     
+    private static final int HTTP_NOT_MODIFIED = 304;
     private static final int HTTP_UNAUTHORIZED = 401;
+
+    /** Returned for metadata that has not changed since the given hash. */
+    private static final DbxMetadata NOT_MODIFIED = new DbxMetadata();
+
     private final String token;
     private final String secret;
     
@@ -48,13 +60,25 @@ class DropboxClientImpl implements DropboxClient {
 
     @Override
     public DbxMetadata getMetadata(String path) throws InvalidTokenException {
+        return getMetadata(path, null);
+    }
+
+    /**
+     * @param hash hash of earlier metadata for the same path, may be null
+     * @return file or directory metadata, null if not found,
+     * {@link #NOT_MODIFIED} if the metadata still has the given hash
+     */
+    private DbxMetadata getMetadata(String path, @CheckForNull String hash) throws InvalidTokenException {
         Preconditions.checkNotNull(path, "Path missing.");
         path = path.startsWith("/") ? path : "/" + path;
 
-        WSRequest ws = new WSRequestFactory(DropboxURLs.METADATA, token, secret)
+        WSRequestFactory factory = new WSRequestFactory(DropboxURLs.METADATA, token, secret)
             .addPath(path)
-            .addPair("include_deleted", "false")
-            .create();
+            .addPair("include_deleted", "false");
+        if (hash != null) {
+            factory.addPair("hash", hash);
+        }
+        WSRequest ws = factory.create();
 
         try {
             HttpResponse resp = get(ws);
@@ -66,6 +90,10 @@ class DropboxClientImpl implements DropboxClient {
                 return ret;
             }
 
+            if (Integer.valueOf(HTTP_NOT_MODIFIED).equals(resp.getStatus())) {
+                return NOT_MODIFIED;
+            }
+
             if (Integer.valueOf(404).equals(resp.getStatus())) {
 	            Logger.warn("File missing, cannot get metadata '%s'. %s", path, getError(resp));
             } else {
@@ -88,8 +116,25 @@ class DropboxClientImpl implements DropboxClient {
 
     @Override
     public Set<String> listDir(String path, ApiClient.ListingType listingType) throws InvalidTokenException, NotADirectoryException {
+        return getContents(path, getMetadata(path), listingType);
+    }
+
+    @Override
+    public DirListing listDirIfChanged(String path, String hash) throws InvalidTokenException, NotADirectoryException {
+        DbxMetadata metadata = getMetadata(path, hash);
+        if (metadata == NOT_MODIFIED) {
+            Logger.info("Folder unchanged: '%s' Hash: %s", path, hash);
+            return null;
+        }
+
+        return new DirListing(getContents(path, metadata, ApiClient.ListingType.FILES),
+                              metadata == null ? null : metadata.hash);
+    }
+
+    private static Set<String> getContents(String path,
+                                           @CheckForNull DbxMetadata metadata,
+                                           ApiClient.ListingType listingType) throws NotADirectoryException {
         Set<String> files = Sets.newHashSet();
-        DbxMetadata metadata = getMetadata(path);
 
         if (metadata != null) {
             if (!metadata.isDir) {
@@ -137,6 +182,29 @@ class DropboxClientImpl implements DropboxClient {
                                                            InvalidTokenException {
         Preconditions.checkArgument(from != null && to != null,
                 "To and from paths cannot be null.");
+        MoveResult result = moveOne(new MoveRequest(from, to));
+        if (result.status == MoveResult.Status.COLLISION) {
+            throw new FileMoveCollisionException(result.error);
+        }
+    }
+
+    /**
+     * The v1 API has no batch endpoint for file operations, so each file
+     * is moved with its own request and requests are made concurrently.
+     */
+    @Override
+    public List<MoveResult> moveBatch(List<MoveRequest> moves) throws InvalidTokenException {
+        return ConcurrentMoves.moveAll(moves, new ConcurrentMoves.Mover() {
+            @Override
+            public MoveResult move(MoveRequest request) throws InvalidTokenException {
+                return moveOne(request);
+            }
+        });
+    }
+
+    private MoveResult moveOne(MoveRequest move) throws InvalidTokenException {
+        String from = move.from;
+        String to = move.to;
         Preconditions.checkArgument((from.charAt(0) == '/') && (to.charAt(0) == '/'),
                 "To and from paths should start with /");
         Preconditions.checkArgument(Dropbox.isValidFilename(to),
@@ -153,17 +221,19 @@ class DropboxClientImpl implements DropboxClient {
 
 	        if (resp.success()) {
 	            Logger.info("Successfully moved files. From: '%s' To: '%s'", from, to);
-	            return;
+	            return MoveResult.success(move);
 	        }
 
 	        String err = getError(resp);
 	        if (Integer.valueOf(403).equals(resp.getStatus())) {
 		        Logger.warn("File collision when trying to move from '%s' to '%s'. %s", from, to, err);
-	            throw new FileMoveCollisionException(err);
+	            return MoveResult.collision(move, err);
 	        }
 	        Logger.error("Failed to move files. " + err);
+	        return MoveResult.failure(move, err);
         } catch (RuntimeException e) {
             Logger.error(e, "Exception when trying to move from '%s' to '%s'", from, to);
+            return MoveResult.failure(move, e.toString());
         }
     }
     
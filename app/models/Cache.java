@@ -1,5 +1,8 @@
 package models;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.persistence.Cacheable;
@@ -8,6 +11,8 @@ import play.Logger;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 class Cache {
     private static final AtomicBoolean CACHE_FIXED = new AtomicBoolean(false);
@@ -28,6 +33,8 @@ class Cache {
         }
     }
 
+    private static final String EXPIRATION = "1h";
+
     private Cache() { }
 
     private static final Cache INSTANCE = new Cache();
@@ -46,8 +53,44 @@ class Cache {
         return (T) play.cache.Cache.get(KeyFactory.keyToString(k));
     }
 
+    /**
+     * @return cached models for the keys that are in the cache
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<Key, T> getAll(Collection<Key> keys) {
+        Map<Key, T> ret = Maps.newHashMap();
+        if (keys.isEmpty()) {
+            return ret;
+        }
+
+        List<String> cacheKeys = Lists.newArrayListWithCapacity(keys.size());
+        for (Key key : keys) {
+            cacheKeys.add(KeyFactory.keyToString(key));
+        }
+
+        Map<String, Object> cached = play.cache.Cache.get(cacheKeys.toArray(new String[cacheKeys.size()]));
+        if (cached != null) {
+            for (Key key : keys) {
+                Object model = cached.get(KeyFactory.keyToString(key));
+                if (model != null) {
+                    ret.put(key, (T) model);
+                }
+            }
+        }
+        return ret;
+    }
+
     public <T> void put(T model, Mapper<T> mapper) {
-        play.cache.Cache.set(KeyFactory.keyToString(mapper.toKey(model)), model, "1h");
+        play.cache.Cache.set(KeyFactory.keyToString(mapper.toKey(model)), model, EXPIRATION);
+    }
+
+    /**
+     * Play's cache has no batch write, so this sets the models one by one.
+     */
+    public <T> void putAll(Iterable<T> models, Mapper<T> mapper) {
+        for (T model: models) {
+            put(model, mapper);
+        }
     }
     
     public <T> void deleteAll(Iterable<T> models, Mapper<T> mapper) {
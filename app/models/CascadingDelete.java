@@ -22,10 +22,12 @@ public class CascadingDelete {
         
         DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
         // Double limit to ensure we get every single rule
-        FetchOptions fo = FetchOptions.Builder.withLimit(Rule.MAX_RULES * 2);
+        FetchOptions fo = DatastoreUtil.withPrefetch(Rule.MAX_RULES * 2);
         ds.delete(DatastoreUtil.queryKeys(Rule.byOwner(user.getKey()), fo, Rule.MAPPER));
         Logger.info("Deleted rules for user: %s", user);
 
+        FileMove.counter(user.getKey()).delete();
+
         // 2. delete user
         user.delete();
         Logger.info("Deleted user: %s", user);
@@ -0,0 +1,78 @@
+package models;
+
+import java.util.Date;
+
+import org.joda.time.DateMidnight;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import common.stats.HyperLogLog;
+
+/**
+ * Per day counts of new users, rules and file moves, and a sketch of the
+ * users who had files moved. They are updated when the entities are
+ * written, so {@link cron.DailyUsageStatsGatherer} reads a few counters
+ * instead of scanning every entity of the day.
+ */
+public class DailyCounters {
+    private static final String PREFIX = "Daily:";
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormat.forPattern("yyyyMMdd");
+    private static final int SHARDS = 10;
+    private static final int SKETCH_SHARDS = 4;
+
+    /**
+     * @return counter of users created on the day of the given date
+     */
+    public static ShardedCounter users(Date day) {
+        return counter(User.KIND, day);
+    }
+
+    /**
+     * @return counter of rules added on the day of the given date, rules
+     *         that were only edited or replaced are not counted
+     */
+    public static ShardedCounter rules(Date day) {
+        return counter(Rule.KIND, day);
+    }
+
+    /**
+     * @return counter of files moved on the day of the given date
+     */
+    public static ShardedCounter fileMoves(Date day) {
+        return counter(FileMove.KIND, day);
+    }
+
+    /**
+     * @return sketch of the owners of the files moved on the day of the
+     *         given date
+     */
+    public static ShardedSketch fileMoveUsers(Date day) {
+        return new ShardedSketch(PREFIX + FileMove.KIND + ":Users:" + format(day), SKETCH_SHARDS);
+    }
+
+    /**
+     * Estimate the number of distinct users who had files moved over a
+     * number of days, e.g. a week or a month, by merging the daily sketches.
+     *
+     * @param from first day
+     * @param to day after the last day
+     */
+    public static long countFileMoveUsers(Date from, Date to) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (DateMidnight day = new DateTime(from).toDateMidnight(); day.isBefore(to.getTime()); day = day.plusDays(1)) {
+            sketch.merge(fileMoveUsers(day.toDate()).get());
+        }
+        return sketch.estimate();
+    }
+
+    private static ShardedCounter counter(String kind, Date day) {
+        return new ShardedCounter(PREFIX + kind + ":" + format(day), SHARDS);
+    }
+
+    private static String format(Date day) {
+        return DAY_FORMAT.print(new DateTime(day));
+    }
+
+    private DailyCounters() {}
+}
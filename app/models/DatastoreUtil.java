@@ -2,9 +2,11 @@ package models;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Cursor;
@@ -25,6 +27,7 @@ import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * Persistence utils.
@@ -77,6 +80,9 @@ public class DatastoreUtil {
         }
     }
 
+    /** Batch size for scans over many entities or keys. */
+    private static final int BULK_CHUNK_SIZE = 500;
+
     private DatastoreUtil() {}
     
     public static Iterable<Key> extractKeys(Iterable<Entity> entities) {
@@ -136,6 +142,52 @@ public class DatastoreUtil {
         }
     }
 
+    /**
+     * Get a number of models with a single batch get. Cachable models are
+     * looked up in the cache first and only the misses are read from the
+     * datastore, then cached.
+     *
+     * @return models in the order of the keys, without the ones that don't
+     *         exist
+     */
+    public static <T> List<T> getAll(Collection<Key> keys, Mapper<T> mapper) {
+        Map<Key, T> found = Maps.newHashMap();
+        boolean cachable = Cache.get().isCachable(mapper);
+        if (cachable) {
+            found.putAll(Cache.get().<T>getAll(keys));
+        }
+
+        List<Key> misses = Lists.newArrayList();
+        for (Key key : keys) {
+            if (! found.containsKey(key)) {
+                misses.add(key);
+            }
+        }
+
+        if (! misses.isEmpty()) {
+            DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+            List<T> loaded = Lists.newArrayList();
+            for (Entity entity : ds.get(misses).values()) {
+                T model = mapper.toModel(entity);
+                found.put(entity.getKey(), model);
+                loaded.add(model);
+            }
+
+            if (cachable) {
+                Cache.get().putAll(loaded, mapper);
+            }
+        }
+
+        List<T> ret = Lists.newArrayListWithCapacity(found.size());
+        for (Key key : keys) {
+            T model = found.get(key);
+            if (model != null) {
+                ret.add(model);
+            }
+        }
+        return ret;
+    }
+
     public static <T> Key put(T model, Mapper<T> mapper) {
         return put(Collections.singleton(model), mapper).get(0);
     }
@@ -155,16 +207,41 @@ public class DatastoreUtil {
         ds.delete(Lists.transform(models, new ModelToKeyFunction<T>(mapper)));
     }
 
+    /**
+     * @param options limit and batch sizes, e.g. {@link #withPrefetch(int)}
+     *        or {@link #bulk()}
+     */
     public static <T> Iterable<T> query(Query q, FetchOptions options, Mapper<T> mapper) {
         DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
         PreparedQuery pq = ds.prepare(q);
-        return Iterables.transform(pq.asIterable(), new FromEntityFunction<T>(mapper));
+        return Iterables.transform(pq.asIterable(options), new FromEntityFunction<T>(mapper));
     }
 
     public static <T> Iterable<Key> queryKeys(Query q, FetchOptions options, Mapper<T> mapper) {
         DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
         PreparedQuery pq = ds.prepare(q.setKeysOnly());
-        return Iterables.transform(pq.asIterable(), TO_KEY);
+        return Iterables.transform(pq.asIterable(options), TO_KEY);
+    }
+
+    /**
+     * Options for result sets that are read completely up to the limit, e.g.
+     * a user's rules or a page of keys: everything comes back with the first
+     * call.
+     */
+    public static FetchOptions withPrefetch(int limit) {
+        return FetchOptions.Builder.withLimit(limit)
+                                   .prefetchSize(limit)
+                                   // Has to be positive even if nothing is fetched
+                                   .chunkSize(Math.max(limit, 1));
+    }
+
+    /**
+     * Options for scanning large result sets, e.g. all user keys, in few
+     * large batches instead of many small ones.
+     */
+    public static FetchOptions bulk() {
+        return FetchOptions.Builder.withChunkSize(BULK_CHUNK_SIZE)
+                                   .prefetchSize(BULK_CHUNK_SIZE);
     }
 
     public static <T> List<T> asList(Query q, Mapper<T> mapper) {
@@ -199,7 +276,7 @@ public class DatastoreUtil {
         PreparedQuery pq = ds.prepare(query);
 
         // We use an iterator for loop to count all entities
-        for (@SuppressWarnings("unused") Entity e: pq.asIterable()) {
+        for (@SuppressWarnings("unused") Entity e: pq.asIterable(bulk())) {
             count++;
         }
 
@@ -5,13 +5,18 @@ import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
+import org.joda.time.DateMidnight;
+
+import play.Logger;
 
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.common.base.Objects;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
 
 public class FileMove implements Serializable {
     private static final FileMoveMapper MAPPER = new FileMoveMapper();
@@ -21,6 +26,9 @@ public class FileMove implements Serializable {
     public static final int RETENTION_DAYS = 90;
 
     public static final String KIND = "FileMove";
+
+    /** File moves are counted once per sort, so a user needs few shards. */
+    private static final int USER_COUNTER_SHARDS = 2;
     
     public Long id;
     public String fromFile;
@@ -87,12 +95,45 @@ public class FileMove implements Serializable {
         Query query = all().setAncestor(owner)
 	                       .addSort("when", SortDirection.DESCENDING);
         return DatastoreUtil.asList(query,
-			                        FetchOptions.Builder.withLimit(maxRows),
+			                        DatastoreUtil.withPrefetch(maxRows),
 			                        MAPPER);
     }
 
+    /**
+     * @return counter of the files moved for the given user
+     */
+    public static ShardedCounter counter(Key owner) {
+        return new ShardedCounter(KIND + ":" + KeyFactory.keyToString(owner), USER_COUNTER_SHARDS);
+    }
+
+    /**
+     * Save the moves and update the daily stats. Failing to update the stats
+     * is logged and ignored, the moves have been made either way.
+     */
     public static void save(List<FileMove> fileMoves) {
         DatastoreUtil.put(fileMoves, MAPPER);
+        if (fileMoves.isEmpty()) {
+            return;
+        }
+
+        try {
+            DailyCounters.fileMoves(new Date()).increment(fileMoves.size());
+        } catch (RuntimeException e) {
+            Logger.warn(e, "Failed to count %d file moves", fileMoves.size());
+        }
+
+        // Moves are almost always for one user on the current day
+        SetMultimap<DateMidnight, Key> owners = HashMultimap.create();
+        for (FileMove mv : fileMoves) {
+            owners.put(new DateMidnight(mv.when), mv.owner);
+        }
+        for (DateMidnight day : owners.keySet()) {
+            try {
+                DailyCounters.fileMoveUsers(day.toDate()).addAll(owners.get(day));
+            } catch (RuntimeException e) {
+                Logger.warn(e, "Failed to add file move users for %s: %s", day, owners.get(day));
+            }
+        }
     }
 
     public static Query all() {
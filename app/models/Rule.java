@@ -14,12 +14,13 @@ import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import play.Logger;
+import rules.FileNameView;
+import rules.RulePattern;
 import rules.RuleType;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
@@ -58,6 +59,9 @@ public class Rule implements Serializable {
     public String dest;
     public Integer rank;
     public Date created;
+
+    /** Lazily parsed {@link #pattern}, reparsed if type or pattern change. */
+    private transient RulePattern parsed;
     
     public Rule() {}
     
@@ -109,8 +113,7 @@ public class Rule implements Serializable {
             limit = MAX_RULES;
         }
 
-        FetchOptions fo = FetchOptions.Builder.withLimit(limit);
-        return DatastoreUtil.query(q, fo, MAPPER);
+        return DatastoreUtil.query(q, DatastoreUtil.withPrefetch(limit), MAPPER);
     }
     
     public static Iterable<Key> fetchKeys(Query q) {
@@ -122,8 +125,7 @@ public class Rule implements Serializable {
             limit = MAX_RULES;
         }
 
-        FetchOptions fo = FetchOptions.Builder.withLimit(limit);
-        return DatastoreUtil.queryKeys(q, fo, MAPPER);
+        return DatastoreUtil.queryKeys(q, DatastoreUtil.withPrefetch(limit), MAPPER);
     }
             
 
@@ -137,11 +139,27 @@ public class Rule implements Serializable {
 
 
     public static boolean ruleExists(Key owner) {
-        return fetch(byOwner(owner).setKeysOnly()).iterator().hasNext();
+        return fetch(byOwner(owner).setKeysOnly(), 1).iterator().hasNext();
     }
     
     public boolean matches(String fileName) {
-        return type.matches(this.pattern, fileName);
+        return matches(FileNameView.of(fileName));
+    }
+
+    public boolean matches(FileNameView file) {
+        return type.matches(getParsedPattern(), file);
+    }
+
+    /**
+     * @return {@link #pattern} parsed for {@link #type}
+     */
+    public RulePattern getParsedPattern() {
+        RulePattern ret = this.parsed;
+        if ((ret == null) || (! ret.isFor(this.type, this.pattern))) {
+            ret = RulePattern.parse(this.type, this.pattern);
+            this.parsed = ret;
+        }
+        return ret;
     }
 
     public @Nonnull List<RuleError> validate() {
@@ -235,6 +253,7 @@ public class Rule implements Serializable {
         }
 
         play.cache.Cache.delete(cacheKey(user.getKey()));
+        user.rulesChanged();
 
         List<Rule> toSave = Lists.newArrayList();
         boolean needToRun = true;
@@ -271,6 +290,18 @@ public class Rule implements Serializable {
         // delete existing rules
         DatastoreService ds = DatastoreServiceFactory.getDatastoreService();        
         ds.delete(oldKeys);
+        // A sort running meanwhile may have cached the old rules again
+        play.cache.Cache.delete(cacheKey(user.getKey()));
+
+        // Every edit saves all rules again, only count the ones added
+        int added = toSave.size() - oldKeys.size();
+        if (added > 0) {
+            try {
+                DailyCounters.rules(new Date()).increment(added);
+            } catch (RuntimeException e) {
+                Logger.warn(e, "Failed to count %d new rules", added);
+            }
+        }
     
         return needToRun;
     }
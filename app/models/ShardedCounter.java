@@ -0,0 +1,133 @@
+package models;
+
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A counter spread over a number of shard entities. Each increment updates a
+ * random shard in a transaction, so concurrent increments rarely conflict
+ * and are never lost. The total is the sum of all shards and is cached
+ * until the next increment. A read racing an increment may still cache the
+ * old total, so it is only kept for {@link #EXPIRATION}.
+ */
+public class ShardedCounter {
+    public static final String KIND = "CounterShard";
+
+    private static final String COUNT = "count";
+    private static final String SHARD_DELIM = "#";
+    private static final String CACHE_PREFIX = "Counter:";
+    private static final String EXPIRATION = "1min";
+    private static final int MAX_TRIES = 3;
+    private static final Random RANDOM = new Random();
+
+    public final String name;
+    private final int numShards;
+
+    /**
+     * @param numShards number of shards, the more concurrent increments are
+     *        expected the more shards are needed
+     */
+    public ShardedCounter(String name, int numShards) {
+        Preconditions.checkArgument(numShards > 0, "Number of shards must be positive: %s", numShards);
+        this.name = Preconditions.checkNotNull(name);
+        this.numShards = numShards;
+    }
+
+    /**
+     * Add to one of the shards in a transaction and clear the cached total.
+     */
+    public void increment(long delta) {
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        Key key = shardKey(RANDOM.nextInt(numShards));
+        for (int tries = 1; ; tries++) {
+            Transaction tx = ds.beginTransaction();
+            try {
+                Entity shard;
+                try {
+                    shard = ds.get(tx, key);
+                } catch (EntityNotFoundException e) {
+                    shard = new Entity(key);
+                }
+                shard.setUnindexedProperty(COUNT, getCount(shard) + delta);
+                ds.put(tx, shard);
+                tx.commit();
+                break;
+            } catch (ConcurrentModificationException e) {
+                if (tries >= MAX_TRIES) {
+                    throw e;
+                }
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        }
+        play.cache.Cache.delete(cacheKey());
+    }
+
+    /**
+     * @return sum of all shards
+     */
+    public long get() {
+        Long total = (Long) play.cache.Cache.get(cacheKey());
+        if (total == null) {
+            DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+            total = 0L;
+            for (Entity shard : ds.get(shardKeys()).values()) {
+                total += getCount(shard);
+            }
+            play.cache.Cache.set(cacheKey(), total, EXPIRATION);
+        }
+        return total;
+    }
+
+    /**
+     * Delete all shards, the counter starts from 0 again.
+     */
+    public void delete() {
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        ds.delete(shardKeys());
+        play.cache.Cache.delete(cacheKey());
+    }
+
+    private static long getCount(Entity shard) {
+        Long count = (Long) shard.getProperty(COUNT);
+        return count == null ? 0 : count;
+    }
+
+    private List<Key> shardKeys() {
+        List<Key> keys = Lists.newArrayListWithCapacity(numShards);
+        for (int i = 0; i < numShards; i++) {
+            keys.add(shardKey(i));
+        }
+        return keys;
+    }
+
+    private Key shardKey(int shard) {
+        return KeyFactory.createKey(KIND, name + SHARD_DELIM + shard);
+    }
+
+    private String cacheKey() {
+        return CACHE_PREFIX + name;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(ShardedCounter.class)
+            .add("name", name)
+            .add("numShards", numShards)
+            .toString();
+    }
+}
@@ -0,0 +1,180 @@
+package models;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import common.stats.HyperLogLog;
+
+/**
+ * A {@link HyperLogLog} sketch spread over a number of shard entities, the
+ * same way as {@link ShardedCounter}. Values are added to a random shard in
+ * a transaction, the sketch is the merge of all shards and is cached until
+ * the next change. Values added in the last day are remembered in the
+ * cache and skipped, since they can't change the sketch.
+ */
+public class ShardedSketch {
+    public static final String KIND = "SketchShard";
+
+    private static final String REGISTERS = "registers";
+    private static final String SHARD_DELIM = "#";
+    private static final String CACHE_PREFIX = "Sketch:";
+    private static final String EXPIRATION = "10min";
+    private static final String ADDED_PREFIX = "SketchAdded:";
+    private static final String ADDED_EXPIRATION = "1d";
+    private static final int MAX_TRIES = 3;
+    private static final Random RANDOM = new Random();
+
+    public final String name;
+    private final int numShards;
+
+    /**
+     * @param numShards number of shards, the more concurrent updates are
+     *        expected the more shards are needed
+     */
+    public ShardedSketch(String name, int numShards) {
+        Preconditions.checkArgument(numShards > 0, "Number of shards must be positive: %s", numShards);
+        this.name = Preconditions.checkNotNull(name);
+        this.numShards = numShards;
+    }
+
+    /**
+     * Add values to one of the shards. Values added recently are skipped
+     * without a transaction. Nothing is written either if the shard already
+     * accounts for all of them.
+     */
+    public void addAll(Collection<?> values) {
+        List<Object> added = Lists.newArrayList();
+        List<String> addedKeys = Lists.newArrayList();
+        for (Object value : values) {
+            String addedKey = addedKey(value);
+            if (play.cache.Cache.safeAdd(addedKey, Boolean.TRUE, ADDED_EXPIRATION)) {
+                added.add(value);
+                addedKeys.add(addedKey);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        try {
+            addToShard(added);
+        } catch (RuntimeException e) {
+            // Let the next attempt add them
+            for (String addedKey : addedKeys) {
+                play.cache.Cache.safeDelete(addedKey);
+            }
+            throw e;
+        }
+    }
+
+    private void addToShard(List<Object> values) {
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        Key key = shardKey(RANDOM.nextInt(numShards));
+        for (int tries = 1; ; tries++) {
+            Transaction tx = ds.beginTransaction();
+            try {
+                Entity shard;
+                try {
+                    shard = ds.get(tx, key);
+                } catch (EntityNotFoundException e) {
+                    shard = new Entity(key);
+                }
+                HyperLogLog sketch = getSketch(shard);
+                boolean changed = false;
+                for (Object value : values) {
+                    changed |= sketch.add(value);
+                }
+                if (! changed) {
+                    return;
+                }
+                shard.setUnindexedProperty(REGISTERS, new Blob(sketch.toBytes()));
+                ds.put(tx, shard);
+                tx.commit();
+                break;
+            } catch (ConcurrentModificationException e) {
+                if (tries >= MAX_TRIES) {
+                    throw e;
+                }
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        }
+        play.cache.Cache.delete(cacheKey());
+    }
+
+    /**
+     * @return merge of all shards
+     */
+    public HyperLogLog get() {
+        byte[] registers = (byte[]) play.cache.Cache.get(cacheKey());
+        if (registers != null) {
+            return HyperLogLog.fromBytes(registers);
+        }
+
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        HyperLogLog sketch = new HyperLogLog();
+        for (Entity shard : ds.get(shardKeys()).values()) {
+            sketch.merge(getSketch(shard));
+        }
+        play.cache.Cache.set(cacheKey(), sketch.toBytes(), EXPIRATION);
+        return sketch;
+    }
+
+    /**
+     * Delete all shards, the sketch starts empty again. Values added in the
+     * last day are still skipped until the cache is cleared.
+     */
+    public void delete() {
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        ds.delete(shardKeys());
+        play.cache.Cache.delete(cacheKey());
+    }
+
+    private static HyperLogLog getSketch(Entity shard) {
+        Blob registers = (Blob) shard.getProperty(REGISTERS);
+        return registers == null ? new HyperLogLog() : HyperLogLog.fromBytes(registers.getBytes());
+    }
+
+    private List<Key> shardKeys() {
+        List<Key> keys = Lists.newArrayListWithCapacity(numShards);
+        for (int i = 0; i < numShards; i++) {
+            keys.add(shardKey(i));
+        }
+        return keys;
+    }
+
+    private Key shardKey(int shard) {
+        return KeyFactory.createKey(KIND, name + SHARD_DELIM + shard);
+    }
+
+    private String cacheKey() {
+        return CACHE_PREFIX + name;
+    }
+
+    private String addedKey(Object value) {
+        return ADDED_PREFIX + name + SHARD_DELIM + value;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(ShardedSketch.class)
+            .add("name", name)
+            .add("numShards", numShards)
+            .toString();
+    }
+}
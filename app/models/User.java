@@ -3,6 +3,7 @@ package models;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import javax.persistence.Cacheable;
@@ -15,8 +16,10 @@ import play.Logger;
 import play.Play;
 import play.exceptions.UnexpectedException;
 import play.libs.Crypto;
+import play.libs.Time;
 import box.BoxAccount;
 import box.BoxCredentials;
+import rules.SortSchedule;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
@@ -52,6 +55,19 @@ public class User implements Serializable {
 
     private static final Set<Long> ADMINS = getAdmins();
 
+    /**
+     * A newer {@link #lastSync} alone is not worth a write unless the stored
+     * one is at least this old.
+     */
+    private static final long LAST_SYNC_GRANULARITY_MILLIS = Play.configuration == null ? 3600000L :
+        Time.parseDuration(Play.configuration.getProperty("sortbox.last_sync_granularity", "1h")) * 1000L;
+
+    /**
+     * Same as {@link #LAST_SYNC_GRANULARITY_MILLIS} for {@link #lastActive}.
+     */
+    private static final long LAST_ACTIVE_GRANULARITY_MILLIS = Play.configuration == null ? 3600000L :
+        Time.parseDuration(Play.configuration.getProperty("sortbox.last_active_granularity", "1h")) * 1000L;
+
     public static final String KIND = "User";
 
     public Long id;
@@ -59,14 +75,40 @@ public class User implements Serializable {
     private String nameLower;
     public String email;
     public Boolean periodicSort;
+    /**
+     * Files moved before moves were counted with
+     * {@link FileMove#counter(Key)}, see {@link #getTotalFileMoves()}.
+     */
     public Integer fileMoves;
     public String sortingFolder;
 
+    /**
+     * Hash of the last listing of {@link #sortingFolder} that left nothing
+     * to sort. Null if the folder has to be listed and sorted on the next run.
+     */
+    public String sortingFolderHash;
+
+    /**
+     * Fingerprint of the rules {@link #sortingFolderHash} was stored with,
+     * the hash is only trusted while the rules have the same fingerprint.
+     */
+    public String sortingFolderRules;
+
     public Date created;
     public Date modified;
     public Date lastSync;
     public Date lastLogin;
 
+    /** Whether there are changes for {@link #saveIfDirty()} to write. */
+    private transient boolean dirty;
+
+    /**
+     * Last time the user logged in, changed their rules or had files sorted.
+     * Sorting runs for idle users are spaced out based on this, see
+     * {@link rules.SortSchedule}.
+     */
+    public Date lastActive;
+
     public AccountType accountType;
     
     private String token;
@@ -78,7 +120,7 @@ public class User implements Serializable {
     
     
     public User(AccountType at) {
-        this.modified = this.created = this.lastLogin = new Date();
+        this.modified = this.created = this.lastLogin = this.lastActive = new Date();
         this.periodicSort = true;
         this.fileMoves = 0;
         this.accountType = at;
@@ -103,6 +145,7 @@ public class User implements Serializable {
         this.modified = (Date) entity.getProperty("modified");
         this.lastSync = (Date) entity.getProperty("lastSync");
         this.lastLogin = (Date) entity.getProperty("lastLogin");
+        this.lastActive = (Date) entity.getProperty("lastActive");
         this.token = (String) entity.getProperty("token");
         this.secret = (String) entity.getProperty("secret");
         Long tmpFileMoves = (Long) entity.getProperty("fileMoves");
@@ -111,6 +154,8 @@ public class User implements Serializable {
 		if (this.sortingFolder == null) {
 			this.sortingFolder = Dropbox.getOldSortboxPath();
 		}
+        this.sortingFolderHash = (String) entity.getProperty("sortingFolderHash");
+        this.sortingFolderRules = (String) entity.getProperty("sortingFolderRules");
         this.tokenExpiration = (Date) entity.getProperty("tokenExpiration");
         this.refreshToken = (String) entity.getProperty("refreshToken");
 
@@ -214,14 +259,83 @@ public class User implements Serializable {
         return accountType == AccountType.DROPBOX && ADMINS.contains(id);
     }
 
+    /**
+     * Set {@link #lastSync} to now. The user is only marked dirty if the
+     * previous value is older than the granularity, but the new value is
+     * written along with any other change.
+     */
     public void updateLastSyncDate() {
-        lastSync = new Date();
+        Date now = new Date();
+        if ((lastSync == null) || (now.getTime() - lastSync.getTime() >= LAST_SYNC_GRANULARITY_MILLIS)) {
+            dirty = true;
+        }
+        lastSync = now;
+    }
+
+    /**
+     * Set {@link #lastActive} to now, only marking the user dirty if the
+     * previous value is older than the granularity. See
+     * {@link #updateLastSyncDate()}.
+     */
+    public void updateLastActive() {
+        Date now = new Date();
+        if ((lastActive == null) || (now.getTime() - lastActive.getTime() >= LAST_ACTIVE_GRANULARITY_MILLIS)) {
+            dirty = true;
+        }
+        lastActive = now;
+    }
+
+    /**
+     * Note that fields were changed, to be written by {@link #saveIfDirty()}.
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Write all changes since the last save with a single put.
+     *
+     * @return true if there was anything to write
+     */
+    public boolean saveIfDirty() {
+        if (dirty) {
+            save();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when the user changes their rules. Makes sure the next sorting
+     * run lists and sorts the whole sorting folder, and that the user is
+     * sorted often again. Runs that started with the old rules may still
+     * write back their hash, which is why it is stored along with
+     * {@link #sortingFolderRules}.
+     */
+    public void rulesChanged() {
+        sortingFolderHash = null;
+        sortingFolderRules = null;
+        lastActive = new Date();
         save();
     }
 
+    /**
+     * Count moved files without writing the user entity. The count is only
+     * informational, so failing to update it is logged and ignored.
+     */
     public void incrementFileMoves(int count) {
-        fileMoves += count;
-        save();
+        try {
+            FileMove.counter(getKey()).increment(count);
+        } catch (RuntimeException e) {
+            Logger.warn(e, "Failed to count %d file moves for %s", count, this);
+        }
+    }
+
+    /**
+     * @return number of files ever moved for this user
+     */
+    public long getTotalFileMoves() {
+        return (fileMoves == null ? 0 : fileMoves) + FileMove.counter(getKey()).get();
     }
     
     /**
@@ -235,7 +349,10 @@ public class User implements Serializable {
 
     public Key save() {
         this.modified = new Date();
-        return DatastoreUtil.put(this, MAPPER);
+        Key key = DatastoreUtil.put(this, MAPPER);
+        dirty = false;
+        SortSchedule.remember(Collections.singleton(this));
+        return key;
     }
 
     public void delete() {
@@ -251,6 +368,21 @@ public class User implements Serializable {
         return DatastoreUtil.get(key(accountType, id), MAPPER);
     }
 
+    /**
+     * @return fully loaded users for the given keys in the same order,
+     *         without the ones that don't exist
+     */
+    public static List<User> findByKeys(List<Key> keys) {
+        return DatastoreUtil.getAll(keys, MAPPER);
+    }
+
+    /**
+     * @return {@link #id} of the user with the given key
+     */
+    public static long idFromKey(Key key) {
+        return key.getName() == null ? key.getId() : Long.parseLong(key.getName().split(KEY_DELIM)[1]);
+    }
+
     public static Key key(AccountType accountType, long id) {
         // Handle null AccountTypes gracefully for tests.
         if (accountType == null && Play.runingInTestMode()) {
@@ -282,17 +414,13 @@ public class User implements Serializable {
         if (limit < 0) {
             fo = FetchOptions.Builder.withDefaults();
         } else {
-            fo = FetchOptions.Builder.withLimit(limit);
+            // Limited queries are searches that show every result
+            fo = DatastoreUtil.withPrefetch(limit);
         }
 
         return DatastoreUtil.query(q, fo, MAPPER);
     }
 
-    public static Iterable<Key> queryKeys(Query q) {
-        assert q.getKind().equals(KIND) : "Query kind must be User";
-        return DatastoreUtil.queryKeys(q, FetchOptions.Builder.withDefaults(), MAPPER);
-    }
-
     /**
      * Upsert a Box user into the datastore.
      */
@@ -302,7 +430,8 @@ public class User implements Serializable {
         }
 
         User user = findById(AccountType.BOX, account.id);
-        if (user == null) {
+        boolean isNew = user == null;
+        if (isNew) {
             user = new User(AccountType.BOX);
             user.id = account.id;
             Logger.info("Box user not found in datastore, creating new one: %s", user);
@@ -314,9 +443,12 @@ public class User implements Serializable {
         // TODO handle null name
         user.name = account.name;
         DateTime expiration = DateTime.now().plusSeconds(cred.expiresIn);
-        user.lastLogin = new Date();
+        user.lastLogin = user.lastActive = new Date();
         user.tokenExpiration = expiration.toDate();
         user.save();
+        if (isNew) {
+            countNewUser(user);
+        }
         
         return user;
     }
@@ -327,7 +459,8 @@ public class User implements Serializable {
         }
     
         User user = findById(AccountType.DROPBOX, account.uid);
-        if (user == null) {
+        boolean isNew = user == null;
+        if (isNew) {
             user = new User(account, token, secret);
             Logger.info("Dropbox user not found in datastore, creating new one: %s", user);
         } else {
@@ -336,13 +469,28 @@ public class User implements Serializable {
                 user.sync(account, token, secret);
             }
             
-            user.lastLogin = new Date();
+            user.lastLogin = user.lastActive = new Date();
         }
 
         user.save();
+        if (isNew) {
+            countNewUser(user);
+        }
         return user;
     }
 
+    /**
+     * Count a user created today. The user is saved either way, so failing
+     * to count it is logged and ignored.
+     */
+    private static void countNewUser(User user) {
+        try {
+            DailyCounters.users(new Date()).increment(1);
+        } catch (RuntimeException e) {
+            Logger.warn(e, "Failed to count new user %s", user);
+        }
+    }
+
     @Override
     public int hashCode() {
         return new HashCodeBuilder()
@@ -357,7 +505,10 @@ public class User implements Serializable {
             .append(this.modified)
             .append(this.lastSync)
             .append(this.lastLogin)
+            .append(this.lastActive)
             .append(this.sortingFolder)
+            .append(this.sortingFolderHash)
+            .append(this.sortingFolderRules)
             .append(this.accountType)
             .append(this.refreshToken)
             .hashCode();
@@ -382,7 +533,10 @@ public class User implements Serializable {
             .append(this.modified, other.modified)
             .append(this.lastSync, other.lastSync)
             .append(this.lastLogin, other.lastLogin)
+            .append(this.lastActive, other.lastActive)
             .append(this.sortingFolder, other.sortingFolder)
+            .append(this.sortingFolderHash, other.sortingFolderHash)
+            .append(this.sortingFolderRules, other.sortingFolderRules)
             .append(this.accountType, other.accountType)
             .append(this.refreshToken, other.refreshToken)
             .isEquals();
@@ -409,6 +563,7 @@ public class User implements Serializable {
             .add("last_update", modified)
             .add("last_sync", lastSync)
             .add("last_login", lastLogin)
+            .add("last_active", lastActive)
             .add("sortingFolder", sortingFolder)
             .toString();
     }
@@ -429,7 +584,10 @@ public class User implements Serializable {
             entity.setProperty("secret", model.secret);
             entity.setProperty("fileMoves", model.fileMoves);
             entity.setProperty("lastLogin", model.lastLogin);
+            entity.setProperty("lastActive", model.lastActive);
             entity.setProperty("sortingFolder", model.sortingFolder);
+            entity.setUnindexedProperty("sortingFolderHash", model.sortingFolderHash);
+            entity.setUnindexedProperty("sortingFolderRules", model.sortingFolderRules);
             if (model.accountType != null) {
                 entity.setProperty("accountType", model.accountType.name());
             }
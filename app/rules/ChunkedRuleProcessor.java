@@ -1,10 +1,17 @@
 package rules;
 
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
 import models.User;
 import play.Logger;
 import play.Play;
+import play.libs.Time;
+import tasks.Lane;
 import tasks.Task;
 import tasks.TaskContext;
+import tasks.TaskLane;
 import tasks.TaskUtils;
 
 import com.google.appengine.api.datastore.Entity;
@@ -13,66 +20,225 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import common.concurrent.RequestThreads;
 
 /**
- * Applies the rules to a chunk of users. 
+ * Applies the rules to a chunk of users. The task lists the keys of its
+ * users, so it sorts exactly the users the fan out put in the chunk.
  * 
  * @author syyang
  */
+@TaskLane(Lane.SCHEDULED)
 public class ChunkedRuleProcessor implements Task {
     private static final String pCHUNK_ID = "Chunk";
-    public static final String pSTART_ID = "StartId";
-    public static final String pLAST_ID = "LastId";
+    private static final String pSTART_ID = "StartId";
+    private static final String pLAST_ID = "LastId";
     private static final String pCHUNK_SIZE = "ChunkSize";
+    private static final String pTICK = "Tick";
+    private static final String pPART = "Part";
+    public static final String pUSER_IDS = "UserIds";
 
-    public static TaskHandle submit(int chunkId, Key startKey, Key lastKey, int chunkSize) {
-        Queue queue = TaskUtils.getQueue(ChunkedRuleProcessor.class);
+    private static final char KEY_SEPARATOR = ',';
+    private static final char NAME_PREFIX = '~';
+
+    /** Number of users in a chunk sorted at the same time. */
+    private static final int PARALLELISM = Play.configuration == null ? 5 :
+        Integer.parseInt(Play.configuration.getProperty("sortbox.sort_threads", "5"));
+
+    /**
+     * Time after which a user's sort is interrupted. It stops once the moves
+     * in flight are done, see {@link RuleUtils#runRules}.
+     */
+    private static final long USER_TIMEOUT_MILLIS = Play.configuration == null ? 60000L :
+        Time.parseDuration(Play.configuration.getProperty("sortbox.sort_user_timeout", "60s")) * 1000L;
+
+    /**
+     * Time after which no more users are started, the rest of the chunk is
+     * left to a continuation task. Users already started may take up to
+     * {@link #USER_TIMEOUT_MILLIS} more, which has to fit in the request
+     * deadline.
+     */
+    private static final long BUDGET_MILLIS = Play.configuration == null ? 480000L :
+        Time.parseDuration(Play.configuration.getProperty("sortbox.chunk_deadline", "8min")) * 1000L;
+
+    /**
+     * Build the task for a chunk. The task is named after the tick and the
+     * first and last users of the chunk, so chunks queued again by an
+     * overlapping or retried run are dropped by the queue. Chunks are
+     * ranges of users in key order, so a retry that packs the users
+     * differently gets different names and no user is left out.
+     *
+     * @param users keys of the users in the chunk, in key order
+     * @param tick {@link SortSchedule} tick to sort the users for
+     */
+    public static TaskOptions newTask(int chunkId, List<Key> users, long tick) {
+        return newTask(chunkId, 0, users, tick);
+    }
+
+    /**
+     * @param part 0 for the task queued by the fan out, incremented for each
+     *        continuation of the chunk
+     * @param tick {@link SortSchedule} tick to sort the users for, null to
+     *        sort everyone
+     */
+    private static TaskOptions newTask(int chunkId, int part, List<Key> users, @CheckForNull Long tick) {
+        Preconditions.checkArgument(! users.isEmpty(), "Empty chunk");
         TaskOptions options = TaskUtils.newTaskOptions(ChunkedRuleProcessor.class)
             .param(pCHUNK_ID, Integer.toString(chunkId))
-            .param(pSTART_ID, KeyFactory.keyToString(startKey))
-            .param(pLAST_ID, KeyFactory.keyToString(lastKey))
-            .param(pCHUNK_SIZE, Long.toString(chunkSize));
-        TaskHandle handle = queue.add(options);
-        Logger.info("Enq'd new task. Task id: %s Start key: %s Last key: %s",
-	        	    handle.getName(), startKey, lastKey);
-        return handle;
+            .param(pUSER_IDS, encodeKeys(users))
+            .param(pPART, Integer.toString(part));
+        if (tick != null) {
+            options.param(pTICK, Long.toString(tick));
+            String first = encodeKeys(users.subList(0, 1));
+            String last = encodeKeys(users.subList(users.size() - 1, users.size()));
+            options.taskName(part == 0 ?
+                             TaskUtils.newTaskName(ChunkedRuleProcessor.class, tick, first, last) :
+                             TaskUtils.newTaskName(ChunkedRuleProcessor.class, tick, first, last, part));
+        }
+        return options;
+    }
+
+    /**
+     * Encode user keys compactly, as ids in base 36 and names prefixed with
+     * {@link #NAME_PREFIX}, separated by {@link #KEY_SEPARATOR}.
+     */
+    public static String encodeKeys(List<Key> users) {
+        StringBuilder ret = new StringBuilder();
+        for (Key key : users) {
+            Preconditions.checkArgument(User.KIND.equals(key.getKind()) && (key.getParent() == null),
+                                        "Not a user key: %s", key);
+            if (ret.length() > 0) {
+                ret.append(KEY_SEPARATOR);
+            }
+
+            if (key.getName() == null) {
+                ret.append(Long.toString(key.getId(), Character.MAX_RADIX));
+            } else {
+                Preconditions.checkArgument(key.getName().indexOf(KEY_SEPARATOR) < 0,
+                                            "Can't encode key name: %s", key);
+                ret.append(NAME_PREFIX).append(key.getName());
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * @see #encodeKeys(List)
+     */
+    public static List<Key> decodeKeys(String users) {
+        List<Key> ret = Lists.newArrayList();
+        for (String part : Splitter.on(KEY_SEPARATOR).omitEmptyStrings().split(users)) {
+            if (part.charAt(0) == NAME_PREFIX) {
+                ret.add(KeyFactory.createKey(User.KIND, part.substring(1)));
+            } else {
+                ret.add(KeyFactory.createKey(User.KIND, Long.parseLong(part, Character.MAX_RADIX)));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Queue tasks built by {@link #newTask} in as few batches as possible.
+     *
+     * @return number of tasks that were added
+     */
+    public static int submitAll(List<TaskOptions> tasks) {
+        Queue queue = TaskUtils.getQueue(ChunkedRuleProcessor.class);
+        int added = TaskUtils.addAll(queue, tasks);
+        Logger.info("Enq'd new tasks. Tasks: %d Already queued: %d", added, tasks.size() - added);
+        return added;
     }
 
     @Override
     public void execute(TaskContext context) throws Exception {
+        long deadline = System.currentTimeMillis() + BUDGET_MILLIS;
         if (Play.runingInTestMode()) {
             Logger.error("Not running rule because we're in test mode.");
             return;
         }
 
         int chunkId = Integer.valueOf(context.getParam(pCHUNK_ID));
+        // Tasks enqueued before there was a schedule sort everyone
+        String tickParam = context.getParam(pTICK);
+        Long tick = tickParam == null ? null : Long.valueOf(tickParam);
+        String partParam = context.getParam(pPART);
+        int part = partParam == null ? 0 : Integer.valueOf(partParam);
+
+        List<User> chunk = Lists.newArrayList(getUsers(context));
+        // Lets the next fan outs skip these users when they aren't due
+        SortSchedule.remember(chunk);
+        List<User> users = Lists.newArrayList();
+        int numUsers = chunk.size();
+        for (User user: chunk) {
+            if ((tick == null) || SortSchedule.isDue(user, tick)) {
+                users.add(user);
+            }
+        }
+
+        ParallelRuleRunner.Result result =
+            new ParallelRuleRunner(RequestThreads.factory(),
+                                   PARALLELISM,
+                                   USER_TIMEOUT_MILLIS).run(users, deadline);
+
+        if (! result.notStarted.isEmpty()) {
+            List<Key> rest = Lists.newArrayList();
+            for (User user : result.notStarted) {
+                rest.add(user.getKey());
+            }
+            TaskUtils.addAll(TaskUtils.getQueue(ChunkedRuleProcessor.class),
+                             Lists.newArrayList(newTask(chunkId, part + 1, rest, tick)));
+            Logger.warn("Chunk ran out of time, queued continuation. Task id: %s Chunk: %d Part: %d Users: %d",
+                        context.getTaskId(), chunkId, part + 1, rest.size());
+        }
+
+        Logger.info("Processed chunk. Task id: %s Chunk: %d Part: %d Tick: %s Users in chunk: %d Processed users: %d Not due: %d Not started: %d Files moved: %d Failed: %s Timed out: %s",
+                    context.getTaskId(), chunkId, part, tick, numUsers,
+                    result.users, numUsers - users.size(), result.notStarted.size(), result.moves,
+                    result.failed, result.timedOut);
+    }
+
+    /**
+     * @return users of the chunk that still have periodic sort enabled, in
+     *         key order
+     */
+    private static Iterable<User> getUsers(TaskContext context) {
+        String userIds = context.getParam(pUSER_IDS);
+        if (userIds != null) {
+            return Iterables.filter(User.findByKeys(decodeKeys(userIds)), new Predicate<User>() {
+                @Override
+                public boolean apply(User user) {
+                    return user.periodicSort;
+                }
+            });
+        }
+
+        // Tasks enqueued before chunks listed their users
         Key startKey = KeyFactory.stringToKey(context.getParam(pSTART_ID));
         Key lastKey = KeyFactory.stringToKey(context.getParam(pLAST_ID));
         int chunkSize = Integer.valueOf(context.getParam(pCHUNK_SIZE));
-
-        Iterable<User> users = getUsersForKeyRange(startKey, lastKey);
-        int moves = 0;
-        int numUsers = 0;
-        for (User user: users) {
-            moves += RuleUtils.runRules(user).size();
-            numUsers++;
-            if (numUsers > chunkSize) {
+        List<User> users = Lists.newArrayList();
+        for (User user: getUsersForKeyRange(startKey, lastKey)) {
+            if (users.size() >= chunkSize) {
                 Logger.error("Chunk contains more ids than expected. Task id: %s", context.getTaskId());
                 break;
             }
+            users.add(user);
         }
-
-        Logger.info("Processed chunk. Task id: %s Chunk: %d Chunk size: %d Start key: %s Last key: %s Processed users: %d Files moved: %d",
-                    context.getTaskId(), chunkId, chunkSize, startKey, lastKey, numUsers, moves);
+        return users;
     }
 
-    public static Iterable<User> getUsersForKeyRange(Key startKey, Key lastKey) {
+    private static Iterable<User> getUsersForKeyRange(Key startKey, Key lastKey) {
         Query q = User.all()
 			          .addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, startKey)
 			          .addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN_OR_EQUAL, lastKey)
-			          .addFilter("periodicSort", FilterOperator.EQUAL, true);
+			          .addFilter("periodicSort", FilterOperator.EQUAL, true)
+			          .addSort(Entity.KEY_RESERVED_PROPERTY);
         return User.query(q);
     }
 }
@@ -0,0 +1,324 @@
+package rules;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+import javax.annotation.CheckForNull;
+
+import models.Rule;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+/**
+ * A user's rules compiled into lookup structures, so that finding the rule
+ * for a file does not cost one {@link RuleType#matches} call per rule.
+ * <p>
+ * {@link RuleType#EXT_EQ} rules are looked up by extension in a hash map,
+ * {@link RuleType#NAME_CONTAINS} rules are all found in a single pass over the
+ * file name with an Aho-Corasick automaton, and only {@link RuleType#GLOB}
+ * rules are tried one at a time. The rule returned is always the one a linear
+ * scan over the rank ordered rule list would have picked.
+ */
+public class CompiledRuleSet {
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    /** All rules sorted by rank. Rules are referred to by their index here. */
+    private final List<Rule> rules;
+
+    /** Lower case extension to index of the first EXT_EQ rule accepting it. */
+    private final Map<String, Integer> extensions;
+
+    /** Automaton over all NAME_CONTAINS patterns, null if there are none. */
+    private final NameMatcher names;
+
+    /** Indices of GLOB rules in rank order. */
+    private final int[] globs;
+
+    private CompiledRuleSet(List<Rule> rules,
+                            Map<String, Integer> extensions,
+                            NameMatcher names,
+                            int[] globs) {
+        this.rules = rules;
+        this.extensions = extensions;
+        this.names = names;
+        this.globs = globs;
+    }
+
+    /**
+     * @param rules rules sorted by rank, as returned by {@link Rule#findByUserId}
+     */
+    public static CompiledRuleSet compile(List<Rule> rules) {
+        List<Rule> ordered = ImmutableList.copyOf(rules);
+        Map<String, Integer> extensions = Maps.newHashMap();
+        NameMatcher.Builder names = new NameMatcher.Builder();
+        List<Integer> globs = Lists.newArrayList();
+
+        for (int i = 0; i < ordered.size(); i++) {
+            Rule rule = ordered.get(i);
+            if ((rule.type == null) || (rule.pattern == null)) {
+                // Such a rule can never match anything
+                continue;
+            }
+
+            RulePattern pattern = rule.getParsedPattern();
+            switch (rule.type) {
+            case EXT_EQ:
+                for (String ext : pattern.exts) {
+                    if (! extensions.containsKey(ext)) {
+                        extensions.put(ext, i);
+                    }
+                }
+                break;
+            case NAME_CONTAINS:
+                names.add(pattern.lower, i);
+                break;
+            case GLOB:
+                globs.add(i);
+                break;
+            }
+        }
+
+        return new CompiledRuleSet(ordered,
+                                   extensions,
+                                   names.isEmpty() ? null : names.build(),
+                                   Ints.toArray(globs));
+    }
+
+    /**
+     * Find the highest ranked rule that matches the given file name.
+     *
+     * @param fileName base name of the file, without the parent path
+     * @return matching rule, null if no rule matches
+     */
+    public @CheckForNull Rule firstMatch(String fileName) {
+        return firstMatch(FileNameView.of(fileName));
+    }
+
+    /**
+     * Find the highest ranked rule that matches the given file.
+     *
+     * @return matching rule, null if no rule matches
+     */
+    public @CheckForNull Rule firstMatch(FileNameView file) {
+        if (file.name == null) {
+            return null;
+        }
+
+        int best = NO_MATCH;
+
+        if (file.lowerExt != null) {
+            Integer extMatch = extensions.get(file.lowerExt);
+            if (extMatch != null) {
+                best = extMatch;
+            }
+        }
+
+        if (names != null) {
+            best = Math.min(best, names.firstMatch(file.lowerName));
+        }
+
+        // Globs can't be indexed, but only globs ranked higher than the
+        // current best match need to be tried.
+        for (int i : globs) {
+            if (i >= best) {
+                break;
+            }
+
+            if (rules.get(i).matches(file)) {
+                best = i;
+                break;
+            }
+        }
+
+        return best == NO_MATCH ? null : rules.get(best);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return digest of the type, pattern and destination of all rules in
+     *         rank order, equal for rule sets that sort files the same way
+     */
+    public String fingerprint() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (Rule rule : rules) {
+            for (Object field : new Object[] { rule.type, rule.pattern, rule.dest }) {
+                digest.update(String.valueOf(field).getBytes(Charsets.UTF_8));
+                digest.update((byte) 0);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+               .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Aho-Corasick automaton that reports the lowest rule index among all
+     * patterns occurring in a string.
+     */
+    private static class NameMatcher {
+        /** Sorted transition labels for each state. */
+        private final char[][] labels;
+        /** Target states, parallel to {@link #labels}. */
+        private final int[][] targets;
+        private final int[] fail;
+        /**
+         * Lowest rule index among patterns ending at each state, including
+         * the ones reachable through failure links.
+         */
+        private final int[] out;
+        /** Lowest rule index of any pattern, no better match is possible. */
+        private final int floor;
+
+        private NameMatcher(char[][] labels, int[][] targets, int[] fail, int[] out, int floor) {
+            this.labels = labels;
+            this.targets = targets;
+            this.fail = fail;
+            this.out = out;
+            this.floor = floor;
+        }
+
+        /**
+         * @param text lower case file name
+         * @return lowest matching rule index or {@link CompiledRuleSet#NO_MATCH}
+         */
+        int firstMatch(String text) {
+            int best = out[0];
+            int state = 0;
+            for (int i = 0; i < text.length() && best > floor; i++) {
+                char c = text.charAt(i);
+                int next = transition(state, c);
+                while (next < 0 && state != 0) {
+                    state = fail[state];
+                    next = transition(state, c);
+                }
+                state = next < 0 ? 0 : next;
+                best = Math.min(best, out[state]);
+            }
+            return best;
+        }
+
+        private int transition(int state, char c) {
+            char[] l = labels[state];
+            int lo = 0;
+            int hi = l.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (l[mid] < c) {
+                    lo = mid + 1;
+                } else if (l[mid] > c) {
+                    hi = mid - 1;
+                } else {
+                    return targets[state][mid];
+                }
+            }
+            return -1;
+        }
+
+        static class Builder {
+            private final List<TreeMap<Character, Integer>> children = Lists.newArrayList();
+            private final List<Integer> out = Lists.newArrayList();
+            private int floor = NO_MATCH;
+
+            Builder() {
+                newState();
+            }
+
+            private int newState() {
+                children.add(new TreeMap<Character, Integer>());
+                out.add(NO_MATCH);
+                return children.size() - 1;
+            }
+
+            boolean isEmpty() {
+                return floor == NO_MATCH;
+            }
+
+            void add(String pattern, int ruleIndex) {
+                int state = 0;
+                for (int i = 0; i < pattern.length(); i++) {
+                    Character c = pattern.charAt(i);
+                    Integer next = children.get(state).get(c);
+                    if (next == null) {
+                        next = newState();
+                        children.get(state).put(c, next);
+                    }
+                    state = next;
+                }
+                out.set(state, Math.min(out.get(state), ruleIndex));
+                floor = Math.min(floor, ruleIndex);
+            }
+
+            NameMatcher build() {
+                int size = children.size();
+                char[][] labels = new char[size][];
+                int[][] targets = new int[size][];
+                int[] fail = new int[size];
+                int[] outs = Ints.toArray(out);
+
+                for (int s = 0; s < size; s++) {
+                    Map<Character, Integer> edges = children.get(s);
+                    labels[s] = new char[edges.size()];
+                    targets[s] = new int[edges.size()];
+                    int j = 0;
+                    for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                        labels[s][j] = edge.getKey();
+                        targets[s][j] = edge.getValue();
+                        j++;
+                    }
+                }
+
+                NameMatcher m = new NameMatcher(labels, targets, fail, outs, floor);
+
+                // Breadth first so failure links of shorter prefixes are
+                // ready by the time longer ones need them.
+                Queue<Integer> queue = new ArrayDeque<Integer>();
+                for (int child : targets[0]) {
+                    fail[child] = 0;
+                    outs[child] = Math.min(outs[child], outs[0]);
+                    queue.add(child);
+                }
+
+                while (! queue.isEmpty()) {
+                    int s = queue.remove();
+                    for (int j = 0; j < labels[s].length; j++) {
+                        char c = labels[s][j];
+                        int child = targets[s][j];
+                        int f = fail[s];
+                        int next = m.transition(f, c);
+                        while (next < 0 && f != 0) {
+                            f = fail[f];
+                            next = m.transition(f, c);
+                        }
+                        fail[child] = next < 0 ? 0 : next;
+                        outs[child] = Math.min(outs[child], outs[fail[child]]);
+                        queue.add(child);
+                    }
+                }
+
+                return m;
+            }
+        }
+    }
+}
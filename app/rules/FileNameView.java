@@ -0,0 +1,42 @@
+package rules;
+
+import javax.annotation.CheckForNull;
+
+import com.google.appengine.repackaged.com.google.common.base.Pair;
+
+/**
+ * A file name analyzed once so that it can be matched against any number of
+ * rules without further allocation.
+ */
+public final class FileNameView {
+    /** Base name of the file, null if unknown. */
+    public final @CheckForNull String name;
+    public final @CheckForNull String lowerName;
+
+    /**
+     * Extension as defined by {@link RuleUtils#splitName(String)}, without
+     * the leading period. Null if the file has no extension.
+     */
+    public final @CheckForNull String ext;
+    public final @CheckForNull String lowerExt;
+
+    private FileNameView(String name, String ext) {
+        this.name = name;
+        this.lowerName = name == null ? null : name.toLowerCase();
+        this.ext = ext;
+        this.lowerExt = ext == null ? null : ext.toLowerCase();
+    }
+
+    /**
+     * @param fileName base name of the file, without the parent path
+     */
+    public static FileNameView of(@CheckForNull String fileName) {
+        Pair<String, String> split = RuleUtils.splitName(fileName);
+        return new FileNameView(fileName, split.second);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,191 @@
+package rules;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Case insensitive matcher for glob patterns. Behaves exactly like the regex
+ * returned by {@link RuleUtils#getGlobPattern(String)} without going through
+ * java.util.regex: matching works directly on the {@link CharSequence} and
+ * does not allocate.
+ * <p>
+ * Only ? and * are supported, every other character is a literal. Like the
+ * regex version:
+ * <ul>
+ * <li>only ASCII letters are matched case insensitively</li>
+ * <li>? matches exactly one code point that is not a line terminator</li>
+ * <li>* matches any number of code points that are not line terminators</li>
+ * </ul>
+ * Instances are immutable and thread safe.
+ */
+public final class GlobMatcher {
+    private static final GlobMatcher EMPTY = new GlobMatcher(new char[0]);
+
+    /**
+     * Pattern with ASCII letters lower cased and consecutive *'s collapsed.
+     */
+    private final char[] glob;
+
+    private GlobMatcher(char[] glob) {
+        this.glob = glob;
+    }
+
+    public static GlobMatcher compile(@CheckForNull String glob) {
+        if (glob == null) {
+            return EMPTY;
+        }
+
+        StringBuilder out = new StringBuilder(glob.length());
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if ((c == '*') && (i > 0) && (glob.charAt(i - 1) == '*')) {
+                continue;
+            }
+            out.append(fold(c));
+        }
+
+        char[] chars = new char[out.length()];
+        out.getChars(0, out.length(), chars, 0);
+        return new GlobMatcher(chars);
+    }
+
+    /**
+     * @return true if the whole text matches this glob
+     */
+    public boolean matches(CharSequence text) {
+        if (text == null) {
+            return false;
+        }
+
+        // Wildcards never match line terminators, so the n-th line terminator
+        // in the text has to be matched by the n-th literal line terminator in
+        // the glob. Match line by line; within a line the usual backtracking
+        // over the last seen * is exact.
+        int p = 0;
+        int t = 0;
+        while (true) {
+            int pEnd = nextTerminator(p);
+            int tEnd = nextTerminator(text, t);
+            if (! matchLine(p, pEnd, text, t, tEnd)) {
+                return false;
+            }
+
+            if ((pEnd == glob.length) || (tEnd == text.length())) {
+                return (pEnd == glob.length) && (tEnd == text.length());
+            }
+
+            if (glob[pEnd] != text.charAt(tEnd)) {
+                return false;
+            }
+
+            p = pEnd + 1;
+            t = tEnd + 1;
+        }
+    }
+
+    /**
+     * Match glob[p, pEnd) against text[t, tEnd), neither contains a line
+     * terminator.
+     */
+    private boolean matchLine(int p, int pEnd, CharSequence text, int t, int tEnd) {
+        int star = -1;
+        int mark = t;
+        while (t < tEnd) {
+            if ((p < pEnd) && (glob[p] == '?')) {
+                p++;
+                t += codePointLength(text, t, tEnd);
+            } else if ((p < pEnd) && (glob[p] == '*')) {
+                star = ++p;
+                mark = t;
+            } else if ((p < pEnd) && literalMatches(p, pEnd, text, t, tEnd)) {
+                int length = codePointLength(glob, p, pEnd);
+                p += length;
+                t += length;
+            } else if (star >= 0) {
+                // Let the last * swallow one more code point and retry
+                p = star;
+                mark += codePointLength(text, mark, tEnd);
+                t = mark;
+            } else {
+                return false;
+            }
+        }
+
+        while ((p < pEnd) && (glob[p] == '*')) {
+            p++;
+        }
+        return p == pEnd;
+    }
+
+    /**
+     * Literals are compared a code point at a time like wildcards, so half
+     * of a surrogate pair only ever matches an unpaired surrogate.
+     */
+    private boolean literalMatches(int p, int pEnd, CharSequence text, int t, int tEnd) {
+        int length = codePointLength(glob, p, pEnd);
+        if (length != codePointLength(text, t, tEnd)) {
+            return false;
+        }
+        if (length == 1) {
+            return glob[p] == fold(text.charAt(t));
+        }
+        return (glob[p] == text.charAt(t)) && (glob[p + 1] == text.charAt(t + 1));
+    }
+
+    private int nextTerminator(int from) {
+        for (int i = from; i < glob.length; i++) {
+            if (isLineTerminator(glob[i])) {
+                return i;
+            }
+        }
+        return glob.length;
+    }
+
+    private static int nextTerminator(CharSequence text, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (isLineTerminator(text.charAt(i))) {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    private static int codePointLength(char[] chars, int i, int end) {
+        if (Character.isHighSurrogate(chars[i]) &&
+            (i + 1 < end) &&
+            Character.isLowSurrogate(chars[i + 1])) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static int codePointLength(CharSequence text, int i, int end) {
+        if (Character.isHighSurrogate(text.charAt(i)) &&
+            (i + 1 < end) &&
+            Character.isLowSurrogate(text.charAt(i + 1))) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Same set of characters . does not match in a regex compiled without
+     * DOTALL or UNIX_LINES.
+     */
+    private static boolean isLineTerminator(char c) {
+        return (c == '\n') ||
+               (c == '\r') ||
+               (c == '\u0085') ||
+               (c == '\u2028') ||
+               (c == '\u2029');
+    }
+
+    /**
+     * Regexes compiled with only CASE_INSENSITIVE fold US-ASCII letters only.
+     */
+    private static char fold(char c) {
+        if ((c >= 'A') && (c <= 'Z')) {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c;
+    }
+}
@@ -0,0 +1,54 @@
+package rules;
+
+import java.util.List;
+
+import models.FileMove;
+import models.User;
+import models.User.AccountType;
+import play.Logger;
+import tasks.Lane;
+import tasks.Task;
+import tasks.TaskContext;
+import tasks.TaskLane;
+import tasks.TaskUtils;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Sorts a single user right after they changed something, e.g. saved new
+ * rules, so the request doesn't have to wait for the moves. Moves show up
+ * on the activity page as they are made.
+ */
+@TaskLane(Lane.INTERACTIVE)
+public class InteractiveSort implements Task {
+    private static final String pACCOUNT_TYPE = "AccountType";
+    private static final String pUSER_ID = "UserId";
+
+    public static TaskHandle submit(User user) {
+        Queue queue = TaskUtils.getQueue(InteractiveSort.class);
+        TaskOptions options = TaskUtils.newTaskOptions(InteractiveSort.class)
+            .param(pACCOUNT_TYPE, user.accountType.name())
+            .param(pUSER_ID, Long.toString(user.id));
+        TaskHandle handle = queue.add(options);
+        Logger.info("Enq'd interactive sort. Task id: %s User: %s", handle.getName(), user);
+        return handle;
+    }
+
+    @Override
+    public void execute(TaskContext context) throws Exception {
+        AccountType accountType = AccountType.valueOf(context.getParam(pACCOUNT_TYPE));
+        long id = Long.parseLong(context.getParam(pUSER_ID));
+        User user = User.findById(accountType, id);
+        if (user == null) {
+            Logger.warn("User to sort no longer exists. Task id: %s Account type: %s Id: %d",
+                        context.getTaskId(), accountType, id);
+            return;
+        }
+
+        List<FileMove> moves = RuleUtils.runRules(user);
+        Logger.info("Sorted user. Task id: %s User: %s Files moved: %d",
+                    context.getTaskId(), user, moves.size());
+    }
+}
@@ -0,0 +1,221 @@
+package rules;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import models.FileMove;
+import models.User;
+import play.Logger;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs the rules for a number of users concurrently on a bounded pool of
+ * threads. Sorting a user is dominated by blocking calls to Dropbox or Box,
+ * so running users side by side cuts the wall time of a chunk from the sum
+ * of all users' latencies to roughly the slowest ones.
+ * <p>
+ * A user that takes longer than the timeout is reported as timed out and
+ * its thread is interrupted. The sort stops once the moves in flight are
+ * done and recorded, see {@link RuleUtils#runRules(User)}, so the thread is
+ * only free again after that. A user that fails does not affect any of the
+ * others. No more users are started after an optional deadline.
+ */
+public class ParallelRuleRunner {
+    private final ThreadFactory threadFactory;
+    private final int parallelism;
+    private final long timeoutMillis;
+    private final Function<User, List<FileMove>> sorter;
+
+    /**
+     * @param threadFactory factory for worker threads, see
+     *        {@link common.concurrent.RequestThreads#factory()}
+     * @param parallelism maximum number of users sorted at the same time
+     * @param timeoutMillis maximum time to spend on a single user
+     * @param sorter sorts a single user, see {@link RuleUtils#runRules(User)}
+     */
+    public ParallelRuleRunner(ThreadFactory threadFactory,
+                              int parallelism,
+                              long timeoutMillis,
+                              Function<User, List<FileMove>> sorter) {
+        Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive: %s", parallelism);
+        Preconditions.checkArgument(timeoutMillis > 0, "Timeout must be positive: %s", timeoutMillis);
+        this.threadFactory = Preconditions.checkNotNull(threadFactory);
+        this.parallelism = parallelism;
+        this.timeoutMillis = timeoutMillis;
+        this.sorter = Preconditions.checkNotNull(sorter);
+    }
+
+    public ParallelRuleRunner(ThreadFactory threadFactory, int parallelism, long timeoutMillis) {
+        this(threadFactory, parallelism, timeoutMillis, new Function<User, List<FileMove>>() {
+            @Override
+            public List<FileMove> apply(User user) {
+                return RuleUtils.runRules(user);
+            }
+        });
+    }
+
+    /**
+     * Sort the given users and wait until every one of them is done, failed
+     * or timed out.
+     */
+    public Result run(List<User> users) throws InterruptedException {
+        return run(users, Long.MAX_VALUE);
+    }
+
+    /**
+     * Sort the given users in order until the deadline. Users that were
+     * started by then are waited for, the remaining ones are reported in
+     * {@link Result#notStarted}.
+     *
+     * @param deadline time in milliseconds after which no more users are
+     *        started
+     */
+    public Result run(List<User> users, long deadline) throws InterruptedException {
+        Result result = new Result();
+        if (users.isEmpty()) {
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, users.size()),
+                                                                threadFactory);
+        try {
+            CompletionService<List<FileMove>> completion =
+                new ExecutorCompletionService<List<FileMove>>(executor);
+            Map<Future<List<FileMove>>, UserRun> pending = Maps.newHashMap();
+            String namespace = NamespaceManager.get();
+            // Users are only handed to the pool when a thread is free, so
+            // the ones left at the deadline are always the last ones.
+            Iterator<User> next = users.iterator();
+            while (next.hasNext() && (pending.size() < parallelism) &&
+                   (System.currentTimeMillis() < deadline)) {
+                UserRun run = new UserRun(next.next(), namespace);
+                pending.put(completion.submit(run), run);
+            }
+
+            while (! pending.isEmpty()) {
+                Future<List<FileMove>> done = completion.poll(cancelExpired(pending), TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    collect(result, pending.remove(done), done);
+                    if (next.hasNext() && (System.currentTimeMillis() < deadline)) {
+                        UserRun run = new UserRun(next.next(), namespace);
+                        pending.put(completion.submit(run), run);
+                    }
+                }
+            }
+
+            while (next.hasNext()) {
+                result.notStarted.add(next.next());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Cancel every run that has used up its time.
+     *
+     * @return milliseconds until the next running user times out
+     */
+    private long cancelExpired(Map<Future<List<FileMove>>, UserRun> pending) {
+        long now = System.currentTimeMillis();
+        long wait = timeoutMillis;
+        for (Map.Entry<Future<List<FileMove>>, UserRun> entry : pending.entrySet()) {
+            long startedAt = entry.getValue().startedAt;
+            if ((startedAt == 0) || entry.getKey().isDone()) {
+                continue;
+            }
+
+            long left = startedAt + timeoutMillis - now;
+            if (left <= 0) {
+                // Only asks the sort to stop, see the class comment. Stays
+                // in pending until the completion service reports it.
+                entry.getKey().cancel(true);
+            } else {
+                wait = Math.min(wait, left);
+            }
+        }
+        return Math.max(wait, 1);
+    }
+
+    private void collect(Result result, UserRun run, Future<List<FileMove>> done)
+            throws InterruptedException {
+        result.users++;
+        if (done.isCancelled()) {
+            Logger.error("Timed out sorting user after %d ms: %s", timeoutMillis, run.user);
+            result.timedOut.add(run.user);
+            return;
+        }
+
+        try {
+            result.moves += done.get().size();
+        } catch (ExecutionException e) {
+            Logger.error(e.getCause(), "Failed to sort user: %s", run.user);
+            result.failed.add(run.user);
+        }
+    }
+
+    private class UserRun implements Callable<List<FileMove>> {
+        final User user;
+        final String namespace;
+        /** Time the run started, 0 while it is waiting for a thread. */
+        volatile long startedAt;
+
+        UserRun(User user, String namespace) {
+            this.user = user;
+            this.namespace = namespace;
+        }
+
+        @Override
+        public List<FileMove> call() {
+            startedAt = System.currentTimeMillis();
+            if (namespace != null) {
+                // Workers may not inherit the namespace of the request
+                NamespaceManager.set(namespace);
+            }
+            return sorter.apply(user);
+        }
+    }
+
+    /**
+     * Aggregated outcome of sorting a number of users.
+     */
+    public static class Result {
+        /** Number of users that finished, failed or timed out. */
+        public int users;
+        /** Total number of files moved. */
+        public int moves;
+        public final List<User> failed = Lists.newArrayList();
+        public final List<User> timedOut = Lists.newArrayList();
+        /** Users left when the deadline passed, in their original order. */
+        public final List<User> notStarted = Lists.newArrayList();
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(Result.class)
+                          .add("users", users)
+                          .add("moves", moves)
+                          .add("failed", failed.size())
+                          .add("timedOut", timedOut.size())
+                          .add("notStarted", notStarted.size())
+                          .toString();
+        }
+    }
+}
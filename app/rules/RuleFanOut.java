@@ -0,0 +1,174 @@
+package rules;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import models.DatastoreUtil;
+import play.Logger;
+import play.Play;
+import play.libs.Time;
+import tasks.Lane;
+import tasks.Task;
+import tasks.TaskContext;
+import tasks.TaskLane;
+import tasks.TaskUtils;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+
+/**
+ * Splits one page of users to sort into {@link ChunkedRuleProcessor} chunks,
+ * then queues itself with a cursor for the next page. Each segment does a
+ * bounded amount of work however many users there are.
+ * <p>
+ * Users known not to be due on the tick are left out, see
+ * {@link SortSchedule#filterDue}. The rest are packed into chunks by their
+ * estimated cost, so that a few slow users don't make their chunk run into
+ * the request deadline.
+ */
+@TaskLane(Lane.SCHEDULED)
+public class RuleFanOut implements Task {
+    private static final String pCHUNK_SIZE = "ChunkSize";
+    private static final String pPAGE_SIZE = "PageSize";
+    private static final String pTICK = "Tick";
+    private static final String pSEGMENT = "Segment";
+    private static final String pFIRST_CHUNK = "FirstChunk";
+    private static final String pCURSOR = "Cursor";
+
+    /**
+     * Estimated time to sort all users of a chunk one after the other. The
+     * chunk itself takes less since users are sorted in parallel.
+     */
+    private static final long CHUNK_BUDGET_MILLIS = Play.configuration == null ? 300000L :
+        Time.parseDuration(Play.configuration.getProperty("sortbox.chunk_budget", "5min")) * 1000L;
+
+    /**
+     * Start fanning out from the first user. Only the first call for a tick
+     * queues anything.
+     *
+     * @param chunkSize users per {@link ChunkedRuleProcessor} task
+     * @param chunksPerSegment chunks queued by each segment
+     * @param tick {@link SortSchedule} tick to sort the users for
+     */
+    public static @CheckForNull TaskHandle submit(int chunkSize, int chunksPerSegment, long tick) {
+        return submit(chunkSize, chunkSize * chunksPerSegment, tick, 0, 0, null);
+    }
+
+    private static @CheckForNull TaskHandle submit(int chunkSize,
+                                     int pageSize,
+                                     long tick,
+                                     int segment,
+                                     int firstChunk,
+                                     @CheckForNull Cursor cursor) {
+        Queue queue = TaskUtils.getQueue(RuleFanOut.class);
+        TaskOptions options = TaskUtils.newTaskOptions(RuleFanOut.class)
+            .taskName(TaskUtils.newTaskName(RuleFanOut.class, tick, segment))
+            .param(pCHUNK_SIZE, Integer.toString(chunkSize))
+            .param(pPAGE_SIZE, Integer.toString(pageSize))
+            .param(pTICK, Long.toString(tick))
+            .param(pSEGMENT, Integer.toString(segment))
+            .param(pFIRST_CHUNK, Integer.toString(firstChunk));
+        if (cursor != null) {
+            options.param(pCURSOR, cursor.toWebSafeString());
+        }
+        try {
+            TaskHandle handle = queue.add(options);
+            Logger.info("Enq'd fan out segment. Task id: %s Tick: %d Segment: %d",
+                        handle.getName(), tick, segment);
+            return handle;
+        } catch (TaskAlreadyExistsException e) {
+            // Another run already covers this tick
+            Logger.info("Fan out segment already queued. Tick: %d Segment: %d", tick, segment);
+            return null;
+        }
+    }
+
+    /**
+     * Split users into chunks of consecutive users. A chunk is closed when
+     * the next user would take its estimated cost over the budget or when it
+     * has the maximum number of users. A user over the budget on their own
+     * gets a chunk of their own.
+     *
+     * @param keys users in key order
+     * @param costs estimated cost of each user, see {@link SortCost}
+     * @return non-empty chunks in key order
+     */
+    public static List<List<Key>> packChunks(List<Key> keys,
+                                             Map<Key, Long> costs,
+                                             int maxChunkSize,
+                                             long budgetMillis) {
+        List<List<Key>> chunks = Lists.newArrayList();
+        List<Key> chunk = Lists.newArrayList();
+        long chunkCost = 0;
+        for (Key key : keys) {
+            Long cost = costs.get(key);
+            long userCost = cost == null ? SortCost.DEFAULT_MILLIS : cost;
+            if (! chunk.isEmpty() &&
+                ((chunk.size() >= maxChunkSize) || (chunkCost + userCost > budgetMillis))) {
+                chunks.add(chunk);
+                chunk = Lists.newArrayList();
+                chunkCost = 0;
+            }
+
+            chunk.add(key);
+            chunkCost += userCost;
+        }
+
+        if (! chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    @Override
+    public void execute(TaskContext context) throws Exception {
+        int chunkSize = Integer.parseInt(context.getParam(pCHUNK_SIZE));
+        int pageSize = Integer.parseInt(context.getParam(pPAGE_SIZE));
+        long tick = Long.parseLong(context.getParam(pTICK));
+        int segment = Integer.parseInt(context.getParam(pSEGMENT));
+        int firstChunk = Integer.parseInt(context.getParam(pFIRST_CHUNK));
+        String cursorParam = context.getParam(pCURSOR);
+
+        // The whole page in one batch
+        FetchOptions fo = DatastoreUtil.withPrefetch(pageSize);
+        if (cursorParam != null) {
+            fo.startCursor(Cursor.fromWebSafeString(cursorParam));
+        }
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        QueryResultList<Entity> page = ds.prepare(RuleProcessor.usersToSort().setKeysOnly())
+                                         .asQueryResultList(fo);
+
+        List<Key> keys = Lists.newArrayListWithCapacity(page.size());
+        for (Entity entity : page) {
+            keys.add(entity.getKey());
+        }
+        List<Key> due = SortSchedule.filterDue(keys, tick);
+
+        List<TaskOptions> chunks = Lists.newArrayList();
+        int chunkId = firstChunk;
+        for (List<Key> chunk : packChunks(due, SortCost.estimateMillis(due), chunkSize, CHUNK_BUDGET_MILLIS)) {
+            chunks.add(ChunkedRuleProcessor.newTask(chunkId++, chunk, tick));
+        }
+        ChunkedRuleProcessor.submitAll(chunks);
+
+        // A short page means there are no more users
+        if (page.size() == pageSize) {
+            submit(chunkSize, pageSize, tick, segment + 1, chunkId, page.getCursor());
+        }
+
+        Logger.info("Fanned out segment. Task id: %s Tick: %d Segment: %d Users: %d Due: %d Chunks: %d",
+                    context.getTaskId(), tick, segment, page.size(), due.size(), chunkId - firstChunk);
+    }
+}
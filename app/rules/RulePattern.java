@@ -0,0 +1,78 @@
+package rules;
+
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A rule pattern parsed once for its {@link RuleType}, so that matching it
+ * against a {@link FileNameView} does not allocate.
+ */
+public final class RulePattern {
+    public final @CheckForNull RuleType type;
+
+    /** Pattern as entered by the user. */
+    public final @CheckForNull String source;
+
+    /** Lower case pattern, null if the pattern is null. */
+    public final @CheckForNull String lower;
+
+    /** Lower case extensions accepted by an {@link RuleType#EXT_EQ} rule. */
+    public final Set<String> exts;
+
+    /** Matcher for a {@link RuleType#GLOB} rule, null for other types. */
+    public final @CheckForNull GlobMatcher glob;
+
+    private RulePattern(RuleType type, String source) {
+        this.type = type;
+        this.source = source;
+        this.lower = source == null ? null : source.toLowerCase();
+        this.exts = type == RuleType.EXT_EQ ? parseExts(source) : ImmutableSet.<String>of();
+        this.glob = type == RuleType.GLOB ? RuleUtils.getGlobMatcher(source) : null;
+    }
+
+    public static RulePattern parse(@CheckForNull RuleType type, @CheckForNull String pattern) {
+        return new RulePattern(type, pattern);
+    }
+
+    /**
+     * @return true if this was parsed from the given type and pattern
+     */
+    public boolean isFor(RuleType type, String pattern) {
+        return (this.type == type) && Objects.equal(this.source, pattern);
+    }
+
+    /**
+     * Comma separated patterns list several extensions, each one trimmed.
+     * A pattern without commas is taken as is.
+     */
+    private static Set<String> parseExts(String pattern) {
+        if (pattern == null) {
+            return ImmutableSet.of();
+        }
+
+        if (! pattern.contains(RuleType.EXT_DELIM)) {
+            return ImmutableSet.of(pattern.toLowerCase());
+        }
+
+        ImmutableSet.Builder<String> ret = ImmutableSet.builder();
+        for (String subExt : pattern.split(RuleType.EXT_DELIM)) {
+            String trimmed = subExt.trim();
+            if (! trimmed.isEmpty()) {
+                ret.add(trimmed.toLowerCase());
+            }
+        }
+        return ret.build();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(RulePattern.class)
+            .add("type", type)
+            .add("source", source)
+            .toString();
+    }
+}
@@ -7,7 +7,6 @@ import play.Logger;
 import play.mvc.With;
 
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 
@@ -17,6 +16,10 @@ import cron.Job;
 
 /**
  * A scheduled task for applying rules in background.
+ * <p>
+ * Only starts a {@link RuleFanOut}, which pages through the users and
+ * queues the {@link ChunkedRuleProcessor} tasks, so this stays fast however
+ * many users there are.
  * 
  * @author syyang
  */
@@ -26,44 +29,31 @@ public class RuleProcessor implements Job {
     public static final int DEFAULT_CHUNK_SIZE = 20;
     public static final String CHUNK_SIZE = "ChunkSize";
 
+    /** Indicates how many chunks each fan out segment queues */
+    public static final int DEFAULT_SEGMENT_CHUNKS = 50;
+    public static final String SEGMENT_CHUNKS = "SegmentChunks";
+
     @Override
     public void execute(Map<String, String> jobData) {
         int chunkSize = jobData.containsKey(CHUNK_SIZE) ?
                 Integer.parseInt(jobData.get(CHUNK_SIZE)) : DEFAULT_CHUNK_SIZE;
+        int segmentChunks = jobData.containsKey(SEGMENT_CHUNKS) ?
+                Integer.parseInt(jobData.get(SEGMENT_CHUNKS)) : DEFAULT_SEGMENT_CHUNKS;
 
-        Iterable<Key> userKeys = getAllUserKeys();
-        
-        int numMessages = 0;
-        int count = 1;
-        Key startKey = null;
-        Key lastKey = null;
-
-        for (Key userKey: userKeys) {
-            if (startKey == null) {
-                startKey = userKey;
-            }
-
-            lastKey = userKey;
-            if (count % chunkSize == 0) {
-                ChunkedRuleProcessor.submit(numMessages++, startKey, lastKey, chunkSize);
-                startKey = null;
-            }
-            count++;
-        }
-
-        if (startKey != null) {
-            ChunkedRuleProcessor.submit(numMessages++, startKey, lastKey, chunkSize);
-        }
+        long tick = SortSchedule.getTick(System.currentTimeMillis());
+        RuleFanOut.submit(chunkSize, segmentChunks, tick);
 
-        Logger.info("Enqueued chunkRuleProcessor messages. Chunk size: %d Num messages: %d",
-	                chunkSize, numMessages);
+        Logger.info("Started fan out. Chunk size: %d Chunks per segment: %d Tick: %d",
+	                chunkSize, segmentChunks, tick);
     }
 
-    private static Iterable<Key> getAllUserKeys() {
-        Query q = User.all()
-                      .addFilter("periodicSort", FilterOperator.EQUAL, true)
-                      .addSort(Entity.KEY_RESERVED_PROPERTY);
-        return User.queryKeys(q);
+    /**
+     * @return query for all users with periodic sort enabled in key order
+     */
+    static Query usersToSort() {
+        return User.all()
+                   .addFilter("periodicSort", FilterOperator.EQUAL, true)
+                   .addSort(Entity.KEY_RESERVED_PROPERTY);
     }
     
 }
@@ -1,46 +1,31 @@
 package rules;
 
-import java.util.regex.Matcher;
-
 public enum RuleType {
     NAME_CONTAINS {
         @Override
-        public boolean matches(String pattern, String fileName) {
-            if ((pattern  == null) ||
-                (fileName == null)) {
+        public boolean matches(RulePattern pattern, FileNameView file) {
+            if ((pattern.lower == null) ||
+                (file.lowerName == null)) {
                 return false;
             }
 
-            return fileName.toLowerCase().contains(pattern.toLowerCase());
+            return file.lowerName.contains(pattern.lower);
         }
     },
     GLOB {
         @Override
-        public boolean matches(String pattern, String fileName) {
-            Matcher m = RuleUtils.getGlobPattern(pattern).matcher(fileName);
-            return m.matches();
+        public boolean matches(RulePattern pattern, FileNameView file) {
+            return pattern.glob.matches(file.name);
         }
     },
     EXT_EQ {
         @Override 
-        public boolean matches(String pattern, String fileName) {
-            String ext = RuleUtils.getExt(fileName);
-            if ((ext == null) ||
-                (pattern == null)) {
+        public boolean matches(RulePattern pattern, FileNameView file) {
+            if (file.lowerExt == null) {
                 return false;
             }
-            
-            if (! pattern.contains(EXT_DELIM)) {
-                return ext.equalsIgnoreCase(pattern);
-            }
-            
-            for (String subExt: pattern.split(EXT_DELIM)) {
-                String trimmed = subExt.trim();
-                if (! trimmed.isEmpty() && trimmed.equalsIgnoreCase(ext)) {
-                    return true;
-                }
-            }
-            return false;
+
+            return pattern.exts.contains(file.lowerExt);
         }
     };
 
@@ -53,7 +38,19 @@ public enum RuleType {
      * @param fileName file name to match against rule
      * @return true if given file name matches the current pattern
      */
-    public abstract boolean matches(String pattern, String fileName);
+    public boolean matches(String pattern, String fileName) {
+        return matches(RulePattern.parse(this, pattern), FileNameView.of(fileName));
+    }
+
+    /**
+     * Allocation free version of {@link #matches(String, String)} for
+     * matching many files against many rules.
+     *
+     * @param pattern pattern for the current rule, parsed for this type
+     * @param file file to match against rule
+     * @return true if given file matches the current pattern
+     */
+    public abstract boolean matches(RulePattern pattern, FileNameView file);
 
     public static RuleType fromDbValue(String dbValue) {
         for (RuleType type : RuleType.values()) {
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -17,30 +18,78 @@ import org.apache.commons.lang.StringUtils;
 
 import play.Logger;
 
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.repackaged.com.google.common.base.Pair;
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import common.api.ApiClient;
 import common.api.ApiClientFactory;
+import common.api.DirListing;
+import common.api.MeteredApiClient;
+import common.api.MoveRequest;
+import common.api.MoveResult;
 
 import dropbox.Dropbox;
-import dropbox.client.FileMoveCollisionException;
 import dropbox.client.InvalidTokenException;
 import dropbox.client.NotADirectoryException;
 
 public class RuleUtils {
     private static final String INVALID_CHAR_REPLACEMENT = "-";
     private static final int MAX_TRIES = 10;
+    private static final int GLOB_CACHE_SIZE = 1000;
+
+    /**
+     * Compiled glob matchers are shared by all users and tasks running in
+     * this instance. Most users stick to the canned rules, so the working set
+     * is small.
+     */
+    private static final Cache<String, GlobMatcher> GLOB_CACHE = CacheBuilder
+            .newBuilder()
+            .maximumSize(GLOB_CACHE_SIZE)
+            .build(CacheLoader.from(new Function<String, GlobMatcher>() {
+                @Override
+                public GlobMatcher apply(String glob) {
+                    return GlobMatcher.compile(glob);
+                }
+            }));
+
+    /**
+     * Return a matcher for the given glob pattern. Compiled matchers are
+     * cached, see {@link #getGlobCacheStats()}.
+     *
+     * Only ? and * are supported.
+     */
+    public static GlobMatcher getGlobMatcher(String glob) {
+        if (glob == null) {
+            return GlobMatcher.compile(null);
+        }
+
+        return GLOB_CACHE.getUnchecked(glob);
+    }
+
+    /**
+     * @return hit and miss counts for the compiled glob matcher cache
+     */
+    public static CacheStats getGlobCacheStats() {
+        return GLOB_CACHE.stats();
+    }
 
     /**
      * Return a regex pattern that will match the given glob pattern.
      *
      * Only ? and * are supported.
-     * TODO use a memoizer to cache compiled patterns.
-     * TODO Collapse consecutive *'s.
+     * Rules are matched with {@link #getGlobMatcher(String)} which
+     * implements the same semantics without a regex.
      */
     public static Pattern getGlobPattern(String glob) {
         if (glob == null) {
@@ -52,7 +101,10 @@ public class RuleUtils {
             final char c = glob.charAt(i);
             switch(c) {
             case '*':
-                out.append(".*");
+                // Consecutive *'s are equivalent to a single one
+                if ((i == 0) || (glob.charAt(i - 1) != '*')) {
+                    out.append(".*");
+                }
                 break;
             case '?':
                 out.append(".");
@@ -123,83 +175,331 @@ public class RuleUtils {
     
     /**
      * Process all rules for the current user and move files to new location
-     * as approriate.
+     * as approriate. The cost of the run is recorded, see {@link SortCost}.
+     * <p>
+     * Nothing is done if the user is being sorted by another request, that
+     * request sorts the user once more when it is done, see {@link SortLease}.
+     * <p>
+     * An interrupted sort stops after the moves in flight, which are still
+     * recorded, and doesn't sort the user again.
      * 
      * @return list of file moves performed
      */
     public static List<FileMove> runRules(User user) {
         List<FileMove> fileMoves = Lists.newArrayList();
-        ApiClient client = ApiClientFactory.create(user);
+        User current = user;
+        while (true) {
+            String lease = SortLease.acquire(user.getKey());
+            if (lease == null) {
+                SortLease.requestRerun(user.getKey());
+                Logger.info("Skipped running rules for %s, already being sorted.", user);
+                return fileMoves;
+            }
+
+            boolean interrupted = false;
+            try {
+                fileMoves.addAll(runRulesOnce(current));
+            } finally {
+                // Held back so that releasing the lease isn't called off
+                interrupted = Thread.interrupted();
+                SortLease.release(user.getKey(), lease);
+            }
+
+            if (interrupted) {
+                // A rerun request is left for whoever sorts the user next
+                Thread.currentThread().interrupt();
+                Logger.warn("Stopped running rules for %s, interrupted.", user);
+                return fileMoves;
+            }
+
+            // Checked after the release so that a request that found the
+            // lease held up to the very end is not lost
+            if (! SortLease.takeRerun(user.getKey())) {
+                return fileMoves;
+            }
+
+            // Rules or the sorting folder may have changed meanwhile
+            current = User.findById(user.accountType, user.id);
+            if (current == null) {
+                return fileMoves;
+            }
+            Logger.info("Running rules again for %s as requested.", user);
+        }
+    }
+
+    /**
+     * All changes to the user are written with a single save at the end. If
+     * the thread is interrupted while files are moved, the moves made are
+     * recorded before the interrupt flag is set again.
+     */
+    private static List<FileMove> runRulesOnce(User user) {
+        long start = System.currentTimeMillis();
+        MeteredApiClient client = new MeteredApiClient(ApiClientFactory.create(user));
+        int numFiles = 0;
+        boolean interrupted = false;
         try {
-            Set<String> files = client.listDir(user.sortingFolder);	
+            CompiledRuleSet rules = CompiledRuleSet.compile(Rule.findByUserId(user.getKey()));
+            String fingerprint = rules.fingerprint();
+            // A hash stored with other rules may have been written back by
+            // a run that started before the rules changed
+            String knownHash = fingerprint.equals(user.sortingFolderRules) ? user.sortingFolderHash : null;
+            DirListing listing = client.listDirIfChanged(user.sortingFolder, knownHash);
+            if (listing == null) {
+                Logger.info("Ran rules for %s, sorting folder unchanged.", user);
+                return Lists.newArrayList();
+            }
 
+            Set<String> files = listing.files;
+            numFiles = files.size();
             if (files.isEmpty()) {
                 Logger.info("Ran rules for %s, no files to process.", user);
-                return fileMoves;
+                updateSortingFolderHash(user, listing.hash, fingerprint);
+                return Lists.newArrayList();
             }
 
             user.updateLastSyncDate();
 
-            List<Rule> rules = Rule.findByUserId(user.getKey());
             Logger.info("Running rules for %s with files %s", user, files);
 
-            for (String file : files) {
-                String base = basename(file);
-                for (Rule r : rules) {
-                    if (r.matches(base)) {
-                        Logger.info("Moving file '%s' to '%s'. Rule id: %s",
-                                    file, r.dest, r.id);
-                        boolean hasCollision = false;
-                        String resolvedName = null;
-                        for (int tries = 0; tries < MAX_TRIES; tries++) {
-                            try {
-                                String suffix = null;
-                                if (hasCollision) {
-                                    suffix = " conflict"
-                                            + (tries > 1 ? " " + tries : "");
-                                }
-
-                                resolvedName = removeInvalidChars(insertIntoName(base, suffix));
-
-                                String dest = r.dest +
-                                              (r.dest.endsWith("/") ? "" : "/") +
-                                              resolvedName;
-                                client.move(file, dest);
-                                break;
-                            } catch (FileMoveCollisionException e) {
-                                hasCollision = true;
-                                resolvedName = null;
-                            }
-                        }
-
-                        if (hasCollision && (resolvedName == null)) {
-                            Logger.error("Cannot move file '%s' to '%s' after %d tries. Skipping.",
-	                                     file, r.dest, MAX_TRIES);
-                        }
-
-                        fileMoves.add(new FileMove(user.getKey(), base, r.dest, hasCollision, resolvedName));
-                        break;
-                    }
-                }
-            }
+            List<FileMove> fileMoves = moveFiles(client, user.getKey(), files, rules);
+            interrupted = Thread.interrupted();
 
             Logger.info("Done running rules for %s. %d moves performed", user,
                     fileMoves.size());
             if (!fileMoves.isEmpty()) {
-                user.incrementFileMoves(fileMoves.size());
+                // The files are moved, record that before anything else
                 FileMove.save(fileMoves);
+                user.updateLastActive();
+                user.incrementFileMoves(fileMoves.size());
             }
 
+            // Moves change the folder, and files that failed to move have
+            // to be tried again next time.
+            boolean done = fileMoves.isEmpty() && !hasMatch(files, rules);
+            updateSortingFolderHash(user, done ? listing.hash : null, fingerprint);
+
             return fileMoves;
         } catch (NotADirectoryException e) {
             Logger.error(e, "User has a file where the SortMyBox folder should be: %s", user);
         } catch (InvalidTokenException e) {
             Logger.error(e, "Disabling periodic sort, invalid OAuth token for user: %s", user);
             user.periodicSort = false;
-            user.save();
+            user.markDirty();
+        } finally {
+            user.saveIfDirty();
+            SortCost.record(user.getKey(), System.currentTimeMillis() - start, client.getCalls(), numFiles);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
         return Collections.emptyList();
     }
+
+    private static boolean hasMatch(Set<String> files, CompiledRuleSet rules) {
+        for (String file : files) {
+            if (rules.firstMatch(basename(file)) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void updateSortingFolderHash(User user, @CheckForNull String hash, String fingerprint) {
+        if (hash == null) {
+            fingerprint = null;
+        }
+        if (! Objects.equal(user.sortingFolderHash, hash) ||
+            ! Objects.equal(user.sortingFolderRules, fingerprint)) {
+            user.sortingFolderHash = hash;
+            user.sortingFolderRules = fingerprint;
+            user.markDirty();
+        }
+    }
+
+    /**
+     * Move each file matching a rule to the destination of the highest ranked
+     * matching rule. Does not touch the datastore.
+     * <p>
+     * Each destination folder is listed once per run and files that would
+     * collide with an existing file get a free "conflict" name right away.
+     * Moves are sent to the client in batches, one per round. Files that
+     * still run into a name collision, e.g. because the folder changed since
+     * it was listed, are retried in the next round with the next free name,
+     * up to {@link #MAX_TRIES} names per file. A name is only ever given to
+     * one file, the first in listing order, which keeps collision suffixes
+     * deterministic.
+     * <p>
+     * No more rounds are started once the thread is interrupted, the moves
+     * made until then are returned.
+     *
+     * @param owner key of the user owning the files
+     * @param files full paths of the files to sort
+     * @return list of file moves performed in listing order, not yet saved
+     */
+    public static List<FileMove> moveFiles(ApiClient client,
+                                           Key owner,
+                                           Set<String> files,
+                                           CompiledRuleSet rules) throws InvalidTokenException {
+        List<PendingMove> pending = Lists.newArrayList();
+        for (String file : files) {
+            String base = basename(file);
+            Rule r = rules.firstMatch(FileNameView.of(base));
+            if (r != null) {
+                Logger.info("Moving file '%s' to '%s'. Rule id: %s",
+                            file, r.dest, r.id);
+                pending.add(new PendingMove(pending.size(), file, base, r));
+            }
+        }
+
+        FileMove[] fileMoves = new FileMove[pending.size()];
+        TakenNames taken = new TakenNames(client);
+        while (! pending.isEmpty()) {
+            if (Thread.currentThread().isInterrupted()) {
+                Logger.warn("Interrupted, leaving %d files to the next run.", pending.size());
+                break;
+            }
+
+            List<PendingMove> retry = Lists.newArrayList();
+            List<PendingMove> sent = Lists.newArrayList();
+            List<MoveRequest> batch = Lists.newArrayList();
+            for (PendingMove move : pending) {
+                move.resolvedName = null;
+                for (; move.tries < MAX_TRIES; move.tries++) {
+                    String name = removeInvalidChars(insertIntoName(move.base, conflictSuffix(move.tries)));
+                    if (taken.claim(move.rule.dest, name)) {
+                        move.resolvedName = name;
+                        break;
+                    }
+                }
+
+                move.hasCollision = move.tries > 0;
+                if (move.resolvedName == null) {
+                    Logger.error("Cannot move file '%s' to '%s' after %d tries. Skipping.",
+                                 move.file, move.rule.dest, MAX_TRIES);
+                    fileMoves[move.index] = move.toFileMove(owner);
+                    continue;
+                }
+
+                sent.add(move);
+                batch.add(new MoveRequest(move.file,
+                                          move.rule.dest +
+                                          (move.rule.dest.endsWith("/") ? "" : "/") +
+                                          move.resolvedName));
+            }
+
+            List<MoveResult> results = batch.isEmpty() ?
+                Collections.<MoveResult>emptyList() :
+                client.moveBatch(batch);
+            for (int i = 0; i < sent.size(); i++) {
+                PendingMove move = sent.get(i);
+                MoveResult result = results.get(i);
+                switch (result.status) {
+                case SUCCESS:
+                    fileMoves[move.index] = move.toFileMove(owner);
+                    break;
+                case COLLISION:
+                    // The name stays claimed, there is a file there now
+                    move.tries++;
+                    retry.add(move);
+                    break;
+                case FAILURE:
+                    Logger.error("Failed to move file '%s' to '%s'. Skipping. %s",
+                                 move.file, move.rule.dest, result.error);
+                    break;
+                }
+            }
+            pending = retry;
+        }
+
+        List<FileMove> ret = Lists.newArrayListWithCapacity(fileMoves.length);
+        for (FileMove fileMove : fileMoves) {
+            if (fileMove != null) {
+                ret.add(fileMove);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param tries number of names already tried for the file
+     * @return suffix for the file name, null for the original name
+     */
+    private static @CheckForNull String conflictSuffix(int tries) {
+        if (tries == 0) {
+            return null;
+        }
+        return " conflict" + (tries > 1 ? " " + tries : "");
+    }
+
+    /**
+     * A file matched by a rule, waiting to be moved.
+     */
+    private static class PendingMove {
+        /** Position of the file among all matched files. */
+        final int index;
+        final String file;
+        final String base;
+        final Rule rule;
+        /** Number of names tried so far, the original name is the first. */
+        int tries = 0;
+        boolean hasCollision = false;
+        String resolvedName;
+
+        PendingMove(int index, String file, String base, Rule rule) {
+            this.index = index;
+            this.file = file;
+            this.base = base;
+            this.rule = rule;
+        }
+
+        FileMove toFileMove(Key owner) {
+            return new FileMove(owner, base, rule.dest, hasCollision, resolvedName);
+        }
+    }
+
+    /**
+     * Names in use in destination folders during a single sorting run. Each
+     * folder is listed the first time a file is moved into it, names given to
+     * files moved during the run are added as they are handed out.
+     * <p>
+     * Names are compared case insensitively, as they are by both Dropbox and
+     * Box.
+     */
+    private static class TakenNames {
+        private final ApiClient client;
+        /** Normalized folder path to lower case names in that folder. */
+        private final Map<String, Set<String>> folders = Maps.newHashMap();
+
+        TakenNames(ApiClient client) {
+            this.client = client;
+        }
+
+        /**
+         * @return true if the name was free and is now taken, false if it was
+         *         already taken
+         */
+        boolean claim(String folder, String name) throws InvalidTokenException {
+            return getNames(folder).add(name.toLowerCase());
+        }
+
+        private Set<String> getNames(String folder) throws InvalidTokenException {
+            String key = normalize(folder);
+            Set<String> names = folders.get(key);
+            if (names == null) {
+                names = Sets.newHashSet();
+                try {
+                    for (String path : client.listDir(folder, ApiClient.ListingType.ALL)) {
+                        names.add(basename(path).toLowerCase());
+                    }
+                } catch (NotADirectoryException e) {
+                    // Moves will fail, nothing to avoid colliding with
+                    Logger.warn("Destination is not a folder: %s", folder);
+                }
+                folders.put(key, names);
+            }
+            return names;
+        }
+    }
     
     /**
      * @return file name with invalid file name characters replaced with
@@ -0,0 +1,99 @@
+package rules;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import play.cache.Cache;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Observed cost of sorting a user, kept in the cache as a moving average
+ * over the user's recent sorts. Used to pack users into chunks that take
+ * about the same time, see {@link RuleFanOut}.
+ */
+public class SortCost implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final String CACHE_PREFIX = "SortCost:";
+    private static final String EXPIRATION = "7d";
+
+    /** Weight of the latest sort in the moving average. */
+    private static final double WEIGHT = 0.3;
+
+    /** Estimate for users that were not sorted recently. */
+    public static final long DEFAULT_MILLIS = 1000;
+
+    /** Wall time of a sort. */
+    public final double millis;
+    /** API calls made by a sort. */
+    public final double apiCalls;
+    /** Files in the sorting folder. */
+    public final double files;
+
+    private SortCost(double millis, double apiCalls, double files) {
+        this.millis = millis;
+        this.apiCalls = apiCalls;
+        this.files = files;
+    }
+
+    /**
+     * Record the cost of having sorted the given user.
+     */
+    public static SortCost record(Key user, long millis, int apiCalls, int files) {
+        String cacheKey = cacheKey(user);
+        SortCost old = (SortCost) Cache.get(cacheKey);
+        SortCost cost = old == null ?
+                new SortCost(millis, apiCalls, files) :
+                new SortCost(average(old.millis, millis),
+                             average(old.apiCalls, apiCalls),
+                             average(old.files, files));
+        Cache.set(cacheKey, cost, EXPIRATION);
+        return cost;
+    }
+
+    /**
+     * @return estimated time to sort each of the given users, in
+     *         milliseconds
+     */
+    public static Map<Key, Long> estimateMillis(List<Key> users) {
+        Map<Key, Long> ret = Maps.newHashMap();
+        if (users.isEmpty()) {
+            return ret;
+        }
+
+        List<String> cacheKeys = Lists.newArrayListWithCapacity(users.size());
+        for (Key user : users) {
+            cacheKeys.add(cacheKey(user));
+        }
+
+        Map<String, Object> cached = Cache.get(cacheKeys.toArray(new String[cacheKeys.size()]));
+        for (int i = 0; i < users.size(); i++) {
+            SortCost cost = cached == null ? null : (SortCost) cached.get(cacheKeys.get(i));
+            ret.put(users.get(i), cost == null ? DEFAULT_MILLIS : Math.round(cost.millis));
+        }
+        return ret;
+    }
+
+    private static double average(double old, double latest) {
+        return (WEIGHT * latest) + ((1 - WEIGHT) * old);
+    }
+
+    private static String cacheKey(Key user) {
+        return CACHE_PREFIX + KeyFactory.keyToString(user);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(SortCost.class)
+                      .add("millis", millis)
+                      .add("apiCalls", apiCalls)
+                      .add("files", files)
+                      .toString();
+    }
+}
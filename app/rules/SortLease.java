@@ -0,0 +1,76 @@
+package rules;
+
+import java.util.UUID;
+
+import javax.annotation.CheckForNull;
+
+import play.Play;
+import play.cache.Cache;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Short lived lease that keeps a user from being sorted by more than one
+ * request at a time, e.g. by {@link controllers.Rules#update} and a
+ * {@link ChunkedRuleProcessor} task. Held in the cache with a time to live,
+ * so a lease is never stuck if its holder dies.
+ * <p>
+ * A runner that can't get the lease asks the holder to sort the user once
+ * more when it is done instead of racing it. The holder checks for such a
+ * request after releasing the lease, so none is missed.
+ */
+public class SortLease {
+    private static final String LEASE_PREFIX = "SortLease:";
+    private static final String RERUN_PREFIX = "SortRerun:";
+
+    /**
+     * Should be longer than any sort. Sorts can only be interrupted between
+     * rounds of moves, so they are bounded by the request deadline rather
+     * than by sortbox.sort_user_timeout.
+     */
+    private static final String TTL =
+        Play.configuration == null ? "10min" : Play.configuration.getProperty("sortbox.sort_lease", "10min");
+
+    /**
+     * @return token to release the lease with, null if someone else holds it
+     */
+    public static @CheckForNull String acquire(Key user) {
+        String token = UUID.randomUUID().toString();
+        return Cache.safeAdd(leaseKey(user), token, TTL) ? token : null;
+    }
+
+    /**
+     * Release a lease, unless it has expired and someone else got it since.
+     */
+    public static void release(Key user, String token) {
+        String key = leaseKey(user);
+        if (token.equals(Cache.get(key))) {
+            Cache.safeDelete(key);
+        }
+    }
+
+    /**
+     * Ask the holder of the lease to sort the user again when done.
+     */
+    public static void requestRerun(Key user) {
+        Cache.set(rerunKey(user), Boolean.TRUE, TTL);
+    }
+
+    /**
+     * @return true if a rerun was requested since the last call
+     */
+    public static boolean takeRerun(Key user) {
+        return Cache.safeDelete(rerunKey(user));
+    }
+
+    private static String leaseKey(Key user) {
+        return LEASE_PREFIX + KeyFactory.keyToString(user);
+    }
+
+    private static String rerunKey(Key user) {
+        return RERUN_PREFIX + KeyFactory.keyToString(user);
+    }
+
+    private SortLease() {}
+}
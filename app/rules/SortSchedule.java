@@ -0,0 +1,149 @@
+package rules;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import models.User;
+import play.cache.Cache;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.Lists;
+
+/**
+ * Decides which users are sorted on a given run of {@link RuleProcessor}.
+ * <p>
+ * Time is divided into ticks, one per scheduled run. Users who were active
+ * recently are sorted on every tick. The longer a user has been idle, the
+ * more ticks go by between sorts: the period is the largest power of two
+ * below a quarter of the time the user has been idle, up to
+ * {@link #MAX_PERIOD_TICKS}. Logging in, changing rules or having files
+ * sorted makes a user active again, see {@link User#lastActive}.
+ * <p>
+ * Each user gets a fixed offset within their period, so idle users are
+ * spread evenly over all ticks instead of all being sorted on the same one.
+ * <p>
+ * When users were last active is also kept in the cache, so that
+ * {@link RuleFanOut} can leave users that are not due out of the chunks
+ * without loading them.
+ */
+public class SortSchedule {
+    /** Time between runs of {@link RuleProcessor}, see cron.xml */
+    public static final long TICK_MILLIS = 15 * 60 * 1000L;
+
+    /** Users are sorted at least once a day. */
+    public static final int MAX_PERIOD_TICKS = 96;
+
+    /**
+     * Idle time is divided by this to get the period, e.g. a user idle for a
+     * day is sorted every 4 hours.
+     */
+    private static final int IDLE_DIVISOR = 4;
+
+    private static final String CACHE_PREFIX = "SortSchedule:";
+    private static final String EXPIRATION = "7d";
+
+    /** Cached in place of a null last active time. */
+    private static final long NEVER_ACTIVE = 0;
+
+    /**
+     * @return tick for the given time, rounded to the nearest tick so that
+     *         runs starting a little early or late still get distinct ticks
+     */
+    public static long getTick(long millis) {
+        return (millis + (TICK_MILLIS / 2)) / TICK_MILLIS;
+    }
+
+    /**
+     * @return number of ticks between sorts for a user last active at the
+     *         given time
+     */
+    public static int getPeriod(@CheckForNull Date lastActive, long nowMillis) {
+        if (lastActive == null) {
+            return MAX_PERIOD_TICKS;
+        }
+
+        long idleTicks = (nowMillis - lastActive.getTime()) / TICK_MILLIS;
+        long target = idleTicks / IDLE_DIVISOR;
+        int period = 1;
+        while ((period * 2 <= target) && (period * 2 < MAX_PERIOD_TICKS)) {
+            period *= 2;
+        }
+
+        return target >= MAX_PERIOD_TICKS ? MAX_PERIOD_TICKS : period;
+    }
+
+    /**
+     * @return true if the user should be sorted on the given tick
+     */
+    public static boolean isDue(User user, long tick) {
+        return isDue(user.id, getLastActive(user), tick);
+    }
+
+    private static boolean isDue(@CheckForNull Long userId, @CheckForNull Date lastActive, long tick) {
+        int period = getPeriod(lastActive, tick * TICK_MILLIS);
+        if (period == 1) {
+            return true;
+        }
+
+        long offset = (userId == null ? 0 : userId.hashCode()) & Integer.MAX_VALUE;
+        return (tick + offset) % period == 0;
+    }
+
+    /**
+     * Cache when the users were last active, for {@link #filterDue}.
+     */
+    public static void remember(Iterable<User> users) {
+        for (User user : users) {
+            Date lastActive = getLastActive(user);
+            Cache.set(cacheKey(user.getKey()),
+                      lastActive == null ? NEVER_ACTIVE : lastActive.getTime(),
+                      EXPIRATION);
+        }
+    }
+
+    /**
+     * @return users that are due on the given tick, in the given order.
+     *         Users that are not in the cache are assumed to be due.
+     */
+    public static List<Key> filterDue(List<Key> users, long tick) {
+        if (users.isEmpty()) {
+            return users;
+        }
+
+        List<String> cacheKeys = Lists.newArrayListWithCapacity(users.size());
+        for (Key user : users) {
+            cacheKeys.add(cacheKey(user));
+        }
+
+        Map<String, Object> cached = Cache.get(cacheKeys.toArray(new String[cacheKeys.size()]));
+        List<Key> ret = Lists.newArrayListWithCapacity(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            Long lastActive = cached == null ? null : (Long) cached.get(cacheKeys.get(i));
+            if ((lastActive == null) ||
+                isDue(User.idFromKey(users.get(i)),
+                      lastActive == NEVER_ACTIVE ? null : new Date(lastActive),
+                      tick)) {
+                ret.add(users.get(i));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Users from before {@link User#lastActive} was introduced count as
+     * active when they last logged in.
+     */
+    private static @CheckForNull Date getLastActive(User user) {
+        return user.lastActive == null ? user.lastLogin : user.lastActive;
+    }
+
+    private static String cacheKey(Key user) {
+        return CACHE_PREFIX + KeyFactory.keyToString(user);
+    }
+
+    private SortSchedule() {}
+}
@@ -20,6 +20,7 @@ import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 
+@TaskLane(Lane.BACKFILL)
 public class FileMoveDeleter implements Task {
 
     private static final String pEND_DATE = "EndDate";
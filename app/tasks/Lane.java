@@ -0,0 +1,21 @@
+package tasks;
+
+/**
+ * Priority lanes for {@link Task}s. Each lane has its own queue with its own
+ * rate and concurrency limits in queue.xml, so work in one lane never waits
+ * behind a backlog in another.
+ */
+public enum Lane {
+    /** Work a user is waiting for, e.g. sorting right after saving rules. */
+    INTERACTIVE("Interactive"),
+    /** Periodic work started by cron. */
+    SCHEDULED("Scheduled"),
+    /** Cleanup and other work nobody is waiting for. */
+    BACKFILL("Backfill");
+
+    public final String queueName;
+
+    private Lane(String queueName) {
+        this.queueName = queueName;
+    }
+}
@@ -2,7 +2,8 @@ package tasks;
 
 /**
  * A generic interface for queued tasks. All implementations
- * should supply a zero-arg constructor.
+ * should supply a zero-arg constructor and declare their lane with
+ * {@link TaskLane}.
  * 
  * @author syyang
  */
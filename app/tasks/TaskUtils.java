@@ -1,9 +1,20 @@
 package tasks;
 
+import java.util.List;
+import java.util.regex.Pattern;
+
+import play.Logger;
+
+import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 
 import common.request.Headers;
 
@@ -16,9 +27,18 @@ public class TaskUtils {
     
     private static final String TASK_PATH = "/tasks";
 
+    /** Task names may only contain letters, digits, underscores and hyphens. */
+    private static final Pattern INVALID_NAME_CHARS = Pattern.compile("[^a-zA-Z0-9_-]");
+
+    /**
+     * @return queue of the lane declared by the task, see {@link TaskLane}.
+     *         Tasks without a lane get a queue of their own named after the
+     *         task class.
+     */
     public static Queue getQueue(Class<? extends Task> taskClass) {
         Preconditions.checkNotNull(taskClass, "Task class can't be null");
-        return QueueFactory.getQueue(taskClass.getSimpleName());
+        TaskLane lane = taskClass.getAnnotation(TaskLane.class);
+        return QueueFactory.getQueue(lane == null ? taskClass.getSimpleName() : lane.value().queueName);
     }
     
     public static TaskOptions newTaskOptions(Class<? extends Task> taskClass) {
@@ -29,6 +49,40 @@ public class TaskUtils {
             .header(Headers.TASK_NAME, taskClass.getSimpleName());
     }
 
+    /**
+     * Add the tasks to the queue with as few calls as possible. Named tasks
+     * that already exist are skipped, the others are still added.
+     *
+     * @return number of tasks that were added
+     */
+    public static int addAll(Queue queue, List<TaskOptions> tasks) {
+        int added = 0;
+        for (int i = 0; i < tasks.size(); i += QueueConstants.maxTasksPerAdd()) {
+            List<TaskOptions> batch = tasks.subList(i, Math.min(tasks.size(), i + QueueConstants.maxTasksPerAdd()));
+            try {
+                added += queue.add(batch).size();
+            } catch (TaskAlreadyExistsException e) {
+                Logger.info("Skipped existing tasks. Queue: %s Tasks: %s", queue.getQueueName(), e.getTaskNames());
+                added += batch.size() - e.getTaskNames().size();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Build a task name from the task class, the current namespace and the
+     * given parts. Runs that would do the same work get the same name, so the
+     * queue only accepts the first of them.
+     */
+    public static String newTaskName(Class<? extends Task> taskClass, Object... parts) {
+        Preconditions.checkNotNull(taskClass, "Task class can't be null");
+        String namespace = NamespaceManager.get();
+        String name = Joiner.on('-').join(Strings.isNullOrEmpty(namespace) ?
+                                              Lists.<Object>asList(taskClass.getSimpleName(), parts) :
+                                              Lists.<Object>asList(taskClass.getSimpleName(), namespace, parts));
+        return INVALID_NAME_CHARS.matcher(name).replaceAll("_");
+    }
+
     private TaskUtils() {}
 
 }
@@ -0,0 +1,108 @@
+package bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import models.Rule;
+import play.Play;
+import rules.RuleType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Deterministic rules and file names for the benchmarks, loosely modeled on
+ * what users keep in their SortMyBox folder.
+ */
+public class BenchData {
+    private static final String[] WORDS = {
+        "invoice", "report", "IMG", "photo", "Scan", "resume", "budget",
+        "notes", "draft", "final", "backup", "screenshot", "DSC", "song",
+        "prince", "purple", "rain", "tax", "2012", "copy"
+    };
+
+    private static final String[] EXTS = {
+        "pdf", "jpg", "JPG", "png", "doc", "docx", "xls", "mp3", "txt", "zip",
+        "mov", "gif", "tar.gz", "key"
+    };
+
+    private final Random rand;
+
+    /**
+     * Just enough of Play for the rule code to run outside of an
+     * application: static initializers read {@link Play#configuration} and
+     * {@link play.Logger} falls back to java.util.logging.
+     */
+    public static void initPlay() {
+        if (Play.configuration == null) {
+            Play.configuration = new Properties();
+        }
+        Logger.getLogger("play").setLevel(Level.WARNING);
+    }
+
+    public BenchData(long seed) {
+        this.rand = new Random(seed);
+    }
+
+    /**
+     * Generate rules in rank order.
+     *
+     * @param type type for all rules, null for a mix of all types
+     */
+    public List<Rule> rules(int count, RuleType type) {
+        List<Rule> ret = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            RuleType t = type == null ? RuleType.values()[i % RuleType.values().length] : type;
+            ret.add(new Rule(t, pattern(t), "/sorted/" + word(), i, null));
+        }
+        return ret;
+    }
+
+    public String pattern(RuleType type) {
+        switch (type) {
+        case EXT_EQ:
+            return rand.nextBoolean() ? ext() : ext() + ", " + ext() + ",  " + ext();
+        case NAME_CONTAINS:
+            return word() + (rand.nextBoolean() ? "" : " " + word());
+        case GLOB:
+            return rand.nextBoolean() ? "*." + ext() : word() + "*" + word() + "?*." + ext();
+        }
+        throw new IllegalArgumentException(String.valueOf(type));
+    }
+
+    /**
+     * @return full paths of files inside the given folder
+     */
+    public Set<String> files(String folder, int count) {
+        Set<String> ret = Sets.newLinkedHashSet();
+        while (ret.size() < count) {
+            ret.add(folder + "/" + fileName());
+        }
+        return ret;
+    }
+
+    public String fileName() {
+        StringBuilder name = new StringBuilder(word());
+        int words = rand.nextInt(3);
+        for (int i = 0; i < words; i++) {
+            name.append(rand.nextBoolean() ? " " : "_").append(word());
+        }
+        name.append(rand.nextInt(10000));
+        if (rand.nextInt(10) > 0) {
+            name.append('.').append(ext());
+        }
+        return name.toString();
+    }
+
+    private String word() {
+        return WORDS[rand.nextInt(WORDS.length)];
+    }
+
+    private String ext() {
+        return EXTS[rand.nextInt(EXTS.length)];
+    }
+}
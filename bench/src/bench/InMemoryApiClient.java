@@ -0,0 +1,154 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import play.libs.WS.HttpResponse;
+import play.mvc.Http.Header;
+
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import common.api.ApiClient;
+import common.api.DirListing;
+import common.api.MoveRequest;
+import common.api.MoveResult;
+
+import dropbox.client.FileMoveCollisionException;
+
+/**
+ * {@link ApiClient} that serves a fixed sorting folder and fixed destination
+ * folders, and never talks to the network. Moves do not change any state, so
+ * every benchmark invocation sees the same files and the same collisions.
+ */
+public class InMemoryApiClient implements ApiClient {
+    private final String sortingFolder;
+    private final Set<String> files;
+    private final Set<String> existing;
+    /** Lower case folder path to the paths of the files in it. */
+    private final SetMultimap<String, String> existingByFolder = HashMultimap.create();
+    private int moves;
+
+    /**
+     * @param files listing of the sorting folder
+     * @param existing lower case paths that already exist, they are listed
+     *        in their folder and moving a file to one of them fails with a
+     *        collision
+     */
+    public InMemoryApiClient(String sortingFolder, Set<String> files, Set<String> existing) {
+        this.sortingFolder = sortingFolder;
+        this.files = ImmutableSet.copyOf(files);
+        this.existing = ImmutableSet.copyOf(existing);
+        for (String path : existing) {
+            existingByFolder.put(path.substring(0, path.lastIndexOf('/')), path);
+        }
+    }
+
+    @Override
+    public void move(String from, String to) throws FileMoveCollisionException {
+        if (existing.contains(to.toLowerCase())) {
+            throw new FileMoveCollisionException("Already exists: " + to);
+        }
+        moves++;
+    }
+
+    @Override
+    public @Nonnull List<MoveResult> moveBatch(List<MoveRequest> moves) {
+        List<MoveResult> ret = Lists.newArrayListWithCapacity(moves.size());
+        for (MoveRequest move : moves) {
+            try {
+                move(move.from, move.to);
+                ret.add(MoveResult.success(move));
+            } catch (FileMoveCollisionException e) {
+                ret.add(MoveResult.collision(move, e.getMessage()));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public @Nonnull Set<String> listDir(String path) {
+        return listDir(path, ListingType.FILES);
+    }
+
+    @Override
+    public @Nonnull Set<String> listDir(String path, ListingType listingType) {
+        if (! listingType.includeFiles) {
+            return Collections.<String>emptySet();
+        }
+        if (sortingFolder.equalsIgnoreCase(path)) {
+            return files;
+        }
+        return existingByFolder.get(path.toLowerCase());
+    }
+
+    @Override
+    public DirListing listDirIfChanged(String path, String hash) {
+        return new DirListing(listDir(path), null);
+    }
+
+    @Override
+    public boolean mkdir(String path) {
+        return true;
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return existing.contains(path.toLowerCase());
+    }
+
+    /**
+     * @return empty 200 response for every request
+     */
+    @Override
+    public @Nonnull HttpResponse debug(HTTPMethod method, String url) {
+        return EmptyResponse.INSTANCE;
+    }
+
+    /**
+     * @return number of successful moves so far
+     */
+    public int getMoves() {
+        return moves;
+    }
+
+    private static class EmptyResponse extends HttpResponse {
+        static final EmptyResponse INSTANCE = new EmptyResponse();
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        public String getStatusText() {
+            return "OK";
+        }
+
+        @Override
+        public String getHeader(String key) {
+            return null;
+        }
+
+        @Override
+        public List<Header> getHeaders() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getString() {
+            return "";
+        }
+
+        @Override
+        public InputStream getStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+}
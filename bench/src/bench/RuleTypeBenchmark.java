@@ -0,0 +1,82 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rules.FileNameView;
+import rules.RulePattern;
+import rules.RuleType;
+
+/**
+ * Cost of matching a single file name against a single rule of each type,
+ * both the way one off callers do it and the way rules are run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleTypeBenchmark {
+    private static final int SIZE = 1024;
+
+    @Param({ "EXT_EQ", "NAME_CONTAINS", "GLOB" })
+    public RuleType type;
+
+    private String[] patterns;
+    private RulePattern[] parsed;
+    private String[] names;
+    private FileNameView[] views;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        BenchData.initPlay();
+        BenchData data = new BenchData(45L);
+        patterns = new String[SIZE];
+        parsed = new RulePattern[SIZE];
+        names = new String[SIZE];
+        views = new FileNameView[SIZE];
+        for (int j = 0; j < SIZE; j++) {
+            patterns[j] = data.pattern(type);
+            parsed[j] = RulePattern.parse(type, patterns[j]);
+            names[j] = data.fileName();
+            views[j] = FileNameView.of(names[j]);
+        }
+    }
+
+    /**
+     * Parses the pattern and file name on every call.
+     */
+    @Benchmark
+    public boolean matchStrings() {
+        int j = next();
+        return type.matches(patterns[j], names[j]);
+    }
+
+    /**
+     * Pattern and file name analyzed up front, as in
+     * {@link rules.CompiledRuleSet}.
+     */
+    @Benchmark
+    public boolean matchParsed() {
+        int j = next();
+        return type.matches(parsed[j], views[j]);
+    }
+
+    private int next() {
+        i = (i + 1) & (SIZE - 1);
+        return i;
+    }
+}
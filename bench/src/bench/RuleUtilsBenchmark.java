@@ -0,0 +1,79 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rules.GlobMatcher;
+import rules.RuleType;
+import rules.RuleUtils;
+
+import com.google.appengine.repackaged.com.google.common.base.Pair;
+
+/**
+ * Cost of the string helpers in {@link RuleUtils} used while sorting and
+ * while saving rules.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleUtilsBenchmark {
+    private static final int SIZE = 1024;
+
+    private String[] globs;
+    private String[] names;
+    private String[] paths;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        BenchData.initPlay();
+        BenchData data = new BenchData(45L);
+        globs = new String[SIZE];
+        names = new String[SIZE];
+        paths = new String[SIZE];
+        for (int j = 0; j < SIZE; j++) {
+            globs[j] = data.pattern(RuleType.GLOB);
+            names[j] = data.fileName();
+            paths[j] = "//Photos /" + data.fileName() + "//  " + names[j] + " ";
+        }
+    }
+
+    @Benchmark
+    public Pattern getGlobPattern() {
+        return RuleUtils.getGlobPattern(globs[next()]);
+    }
+
+    @Benchmark
+    public GlobMatcher getGlobMatcher() {
+        return RuleUtils.getGlobMatcher(globs[next()]);
+    }
+
+    @Benchmark
+    public Pair<String, String> splitName() {
+        return RuleUtils.splitName(names[next()]);
+    }
+
+    @Benchmark
+    public String normalize() {
+        return RuleUtils.normalize(paths[next()]);
+    }
+
+    private int next() {
+        i = (i + 1) & (SIZE - 1);
+        return i;
+    }
+}
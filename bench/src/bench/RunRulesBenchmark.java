@@ -0,0 +1,100 @@
+package bench;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import models.FileMove;
+import models.Rule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import rules.CompiledRuleSet;
+import rules.RuleType;
+import rules.RuleUtils;
+
+import com.google.common.collect.Sets;
+
+/**
+ * A whole sorting run for one user, minus the datastore: list the sorting
+ * folder, compile the rules, match every file and move it, resolving name
+ * collisions along the way. About one in ten files already exists in its
+ * destination folder and is moved under a conflict name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunRulesBenchmark {
+    private static final String SORTING_FOLDER = "/SortMyBox";
+
+    @Param({ "1", "10", "50", "200" })
+    public int ruleCount;
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int fileCount;
+
+    /**
+     * Type of all rules, MIXED cycles through every type.
+     */
+    @Param({ "EXT_EQ", "NAME_CONTAINS", "GLOB", "MIXED" })
+    public String mix;
+
+    private List<Rule> rules;
+    private CompiledRuleSet compiled;
+    private InMemoryApiClient client;
+
+    @Setup
+    public void setUp() {
+        BenchData.initPlay();
+        BenchData data = new BenchData(45L);
+        rules = data.rules(ruleCount, "MIXED".equals(mix) ? null : RuleType.valueOf(mix));
+        compiled = CompiledRuleSet.compile(rules);
+
+        Set<String> files = data.files(SORTING_FOLDER, fileCount);
+        Set<String> existing = Sets.newHashSet();
+        int j = 0;
+        for (String file : files) {
+            Rule r = compiled.firstMatch(RuleUtils.basename(file));
+            if ((r != null) && (j++ % 10 == 0)) {
+                existing.add((r.dest + "/" + RuleUtils.basename(file)).toLowerCase());
+            }
+        }
+        client = new InMemoryApiClient(SORTING_FOLDER, files, existing);
+    }
+
+    /**
+     * Rule matching only.
+     */
+    @Benchmark
+    public void match(Blackhole bh) throws Exception {
+        for (String file : client.listDir(SORTING_FOLDER)) {
+            bh.consume(compiled.firstMatch(RuleUtils.basename(file)));
+        }
+    }
+
+    /**
+     * Same work as {@link RuleUtils#runRules} after the datastore reads and
+     * before the datastore writes.
+     */
+    @Benchmark
+    public List<FileMove> runRules() throws Exception {
+        return RuleUtils.moveFiles(client,
+                                   null,
+                                   client.listDir(SORTING_FOLDER),
+                                   CompiledRuleSet.compile(rules));
+    }
+}
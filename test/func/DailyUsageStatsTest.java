@@ -2,17 +2,18 @@ package func;
 
 import java.util.Arrays;
 import java.util.Date;
+import models.DailyCounters;
 import models.FileMove;
 import models.User;
-import models.UserStatsUtil;
 import models.User.AccountType;
 import org.joda.time.DateTime;
 import org.junit.Test;
+import play.cache.Cache;
 import com.google.appengine.api.datastore.Key;
 import unit.models.BaseModelTest;
 
 /**
- * Tests out the uniqueFileMoveCount from the DailyUsageStats table
+ * Tests the daily usage counters behind the DailyUsageStats table
  * @author mojo
  *
  */
@@ -28,8 +29,10 @@ public class DailyUsageStatsTest extends BaseModelTest {
 	
 	@Test
 	public void testUniqueFileMoveUserCount() {		
+		Cache.clear();
 		//setup date stuff
 		DateTime now = DateTime.now();
+        Date d3 = now.plusDays(1).toDateMidnight().toDate();
         Date d2 = now.toDateMidnight().toDate();
         Date d1 = now.minusDays(1).toDateMidnight().toDate();  
 				
@@ -42,14 +45,33 @@ public class DailyUsageStatsTest extends BaseModelTest {
 		mv2.when = now.minusDays(3).toDate();
 		FileMove.save(Arrays.asList(mv1, mv2));
 
-		int count = UserStatsUtil.countUniqueFileMoveUsers("when", d1, FileMove.all());
+		long count = DailyCounters.countFileMoveUsers(d1, d3);
 		assertEquals(1, count);
 
 		//create a file move for user 2
 		FileMove mv3 = new FileMove(key2(), "rick", "james", false);
 		FileMove.save(Arrays.asList(mv3));
 
-		int newCount = UserStatsUtil.countUniqueFileMoveUsers("when", d1, FileMove.all());
+		long newCount = DailyCounters.countFileMoveUsers(d1, d3);
 		assertEquals(2, newCount);
+
+		//nothing was moved yesterday, and moving again for user 1 doesn't count twice
+		FileMove.save(Arrays.asList(new FileMove(key1(), "foo", "bar", false)));
+		assertEquals(0, DailyCounters.countFileMoveUsers(d1, d2));
+		assertEquals(2, DailyCounters.countFileMoveUsers(d2, d3));
+		assertEquals(1, DailyCounters.countFileMoveUsers(now.minusDays(7).toDate(), d2));
+	}
+
+	@Test
+	public void testDailyFileMoveCounter() {
+		Cache.clear();
+		Date today = new Date();
+		assertEquals(0, DailyCounters.fileMoves(today).get());
+
+		FileMove.save(Arrays.asList(new FileMove(key1(), "foo", "bar", false),
+		                            new FileMove(key2(), "foo", "bar", false)));
+		FileMove.save(Arrays.asList(new FileMove(key1(), "rick", "james", false)));
+		assertEquals(3, DailyCounters.fileMoves(today).get());
+		assertEquals(0, DailyCounters.fileMoves(DateTime.now().minusDays(1).toDate()).get());
 	}
 }
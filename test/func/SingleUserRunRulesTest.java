@@ -1,8 +1,11 @@
 package func;
 
 import static dropbox.client.DropboxClientFactory.testClient;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -10,17 +13,26 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
+import models.FileMove;
 import models.Rule;
 import models.User;
 
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import rules.RuleType;
 import rules.RuleUtils;
+import rules.SortLease;
 import unit.models.BaseModelTest;
 import unit.models.UserTest;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import common.api.ApiClient.ListingType;
+import common.api.DirListing;
+import common.api.MoveRequest;
+import common.api.MoveResult;
 
 import dropbox.Dropbox;
 import dropbox.client.DropboxClient;
@@ -32,12 +44,15 @@ import dropbox.client.FileMoveCollisionException;
  * @author mustpax
  */
 public class SingleUserRunRulesTest extends BaseModelTest {
+    private static final String HASH = "d7f3e0a2";
+
     private User u = null;
     
     @Override
     public void setUp() throws Exception {
         super.setUp();
         testClient = mock(DropboxClient.class);
+        when(testClient.moveBatch(anyListOf(MoveRequest.class))).thenAnswer(new MoveEach());
         u = UserTest.newUser();
         u.save();
     }
@@ -70,6 +85,57 @@ public class SingleUserRunRulesTest extends BaseModelTest {
         verify(testClient).move(Dropbox.getSortboxPath() + "/foo", "/foo/foo conflict 2");
     }
 
+    @Test
+    public void testConflictFromListing() throws Exception {
+        addToSortbox("foo");
+        setRules(new Rule(RuleType.NAME_CONTAINS, "foo", "/foo", 0, null));
+        when(testClient.listDir("/foo", ListingType.ALL))
+            .thenReturn(Sets.newHashSet("/foo/FOO", "/foo/foo conflict"));
+
+        RuleUtils.runRules(u);
+        verify(testClient).move(Dropbox.getSortboxPath() + "/foo", "/foo/foo conflict 2");
+        verify(testClient, never()).move(Dropbox.getSortboxPath() + "/foo", "/foo/foo");
+    }
+
+    @Test
+    public void testUnchangedFolder() throws Exception {
+        addToSortbox("bar");
+        setRules(new Rule(RuleType.NAME_CONTAINS, "foo", "/foo", 0, null));
+
+        // Nothing to sort, so the listing is remembered
+        assertTrue(RuleUtils.runRules(u).isEmpty());
+        assertEquals(HASH, User.findById(u.accountType, u.id).sortingFolderHash);
+
+        assertTrue(RuleUtils.runRules(u).isEmpty());
+        verify(testClient).listDirIfChanged(Dropbox.getSortboxPath(), HASH);
+
+        // New rules invalidate the listing
+        setRules(new Rule(RuleType.NAME_CONTAINS, "bar", "/bar", 0, null));
+        assertNull(u.sortingFolderHash);
+        RuleUtils.runRules(u);
+        verify(testClient).move(Dropbox.getSortboxPath() + "/bar", "/bar/bar");
+        assertNull(User.findById(u.accountType, u.id).sortingFolderHash);
+    }
+
+    @Test
+    public void testStaleUserAfterRulesChanged() throws Exception {
+        addToSortbox("bar");
+        setRules(new Rule(RuleType.NAME_CONTAINS, "foo", "/foo", 0, null));
+        assertTrue(RuleUtils.runRules(u).isEmpty());
+
+        // A run that loaded the user before the rules changed writes back
+        // the listing it found nothing to sort in
+        User stale = User.findById(u.accountType, u.id);
+        assertEquals(HASH, stale.sortingFolderHash);
+        setRules(new Rule(RuleType.NAME_CONTAINS, "bar", "/bar", 0, null));
+        stale.markDirty();
+        assertTrue(stale.saveIfDirty());
+
+        // The stored hash was for the old rules, so it isn't trusted
+        assertEquals(1, RuleUtils.runRules(User.findById(u.accountType, u.id)).size());
+        verify(testClient).move(Dropbox.getSortboxPath() + "/bar", "/bar/bar");
+    }
+
     @Test
     public void testBadName() throws Exception {
         setRules(new Rule(RuleType.NAME_CONTAINS, "foo", "/foo:*?", 0, null));
@@ -87,6 +153,114 @@ public class SingleUserRunRulesTest extends BaseModelTest {
         verify(testClient).move(Dropbox.getSortboxPath() + "/foo", "/foo/foo");
     }
 
+    @Test
+    public void testMultipleDestinations() throws Exception {
+        addToSortbox("a.pdf", "b.pdf", "c.jpg", "d.txt");
+        setRules(new Rule(RuleType.EXT_EQ, "pdf", "/Docs", 0, null),
+                 new Rule(RuleType.EXT_EQ, "jpg", "/Photos", 1, null),
+                 new Rule(RuleType.EXT_EQ, "txt", "/docs/", 2, null));
+        doThrow(new FileMoveCollisionException(null))
+            .when(testClient).move(Dropbox.getSortboxPath() + "/b.pdf", "/Docs/b.pdf");
+
+        List<FileMove> moves = RuleUtils.runRules(u);
+        assertEquals(4, moves.size());
+        verify(testClient).move(Dropbox.getSortboxPath() + "/a.pdf", "/Docs/a.pdf");
+        verify(testClient).move(Dropbox.getSortboxPath() + "/b.pdf", "/Docs/b conflict.pdf");
+        verify(testClient).move(Dropbox.getSortboxPath() + "/c.jpg", "/Photos/c.jpg");
+        verify(testClient).move(Dropbox.getSortboxPath() + "/d.txt", "/docs/d.txt");
+    }
+
+    @Test
+    public void testLeaseHeld() throws Exception {
+        addToSortbox("foo");
+        setRules(new Rule(RuleType.NAME_CONTAINS, "foo", "/foo", 0, null));
+
+        String lease = SortLease.acquire(u.getKey());
+        assertNotNull(lease);
+        try {
+            // Another request is sorting the user, it is asked to run again
+            assertTrue(RuleUtils.runRules(u).isEmpty());
+            verify(testClient, never()).listDirIfChanged(Dropbox.getSortboxPath(), null);
+            assertTrue(SortLease.takeRerun(u.getKey()));
+        } finally {
+            SortLease.release(u.getKey(), lease);
+        }
+
+        assertEquals(1, RuleUtils.runRules(u).size());
+    }
+
+    @Test
+    public void testRerunRequestedWhileSorting() throws Exception {
+        final Set<String> files = Sets.newHashSet(Dropbox.getSortboxPath() + "/foo");
+        setRules(new Rule(RuleType.NAME_CONTAINS, "foo", "/foo", 0, null));
+        when(testClient.listDirIfChanged(Dropbox.getSortboxPath(), null)).thenAnswer(new Answer<DirListing>() {
+            private int calls;
+
+            @Override
+            public DirListing answer(InvocationOnMock invocation) throws Throwable {
+                if (calls++ == 0) {
+                    // Another request finds the lease held
+                    assertTrue(RuleUtils.runRules(u).isEmpty());
+                }
+                return new DirListing(files, HASH);
+            }
+        });
+
+        assertEquals(2, RuleUtils.runRules(u).size());
+        verify(testClient, times(2)).listDirIfChanged(Dropbox.getSortboxPath(), null);
+        assertFalse(SortLease.takeRerun(u.getKey()));
+    }
+
+    @Test
+    public void testInterrupted() throws Exception {
+        addToSortbox("a.pdf", "b.pdf");
+        setRules(new Rule(RuleType.EXT_EQ, "pdf", "/Docs", 0, null));
+        doThrow(new FileMoveCollisionException(null))
+            .when(testClient).move(Dropbox.getSortboxPath() + "/b.pdf", "/Docs/b.pdf");
+        when(testClient.moveBatch(anyListOf(MoveRequest.class))).thenAnswer(new Answer<List<MoveResult>>() {
+            @Override
+            public List<MoveResult> answer(InvocationOnMock invocation) throws Throwable {
+                // Timed out while the first round was in flight
+                List<MoveResult> ret = new MoveEach().answer(invocation);
+                Thread.currentThread().interrupt();
+                return ret;
+            }
+        });
+
+        try {
+            assertEquals(1, RuleUtils.runRules(u).size());
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+
+        // The move made is recorded, the collision is left for the next run
+        verify(testClient, never()).move(Dropbox.getSortboxPath() + "/b.pdf", "/Docs/b conflict.pdf");
+        assertEquals(1, FileMove.findByOwner(u.getKey(), 10).size());
+        assertNull(User.findById(u.accountType, u.id).sortingFolderHash);
+    }
+
+    /**
+     * Batch moves made with the mock's single file move.
+     */
+    private static class MoveEach implements Answer<List<MoveResult>> {
+        @Override
+        public List<MoveResult> answer(InvocationOnMock invocation) throws Throwable {
+            @SuppressWarnings("unchecked")
+            List<MoveRequest> moves = (List<MoveRequest>) invocation.getArguments()[0];
+            List<MoveResult> ret = Lists.newArrayList();
+            for (MoveRequest move : moves) {
+                try {
+                    testClient.move(move.from, move.to);
+                    ret.add(MoveResult.success(move));
+                } catch (FileMoveCollisionException e) {
+                    ret.add(MoveResult.collision(move, e.getMessage()));
+                }
+            }
+            return ret;
+        }
+    }
+
     private static void addToSortbox(String... files) throws Exception {
         Set<String> ret = Sets.newHashSet();
         for (String file: files) {
@@ -94,5 +268,7 @@ public class SingleUserRunRulesTest extends BaseModelTest {
         }
         when(testClient.listDir(Dropbox.getSortboxPath()))
             .thenReturn(ret);
+        when(testClient.listDirIfChanged(Dropbox.getSortboxPath(), null))
+            .thenReturn(new DirListing(ret, HASH));
     }
 }
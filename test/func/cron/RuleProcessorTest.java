@@ -3,6 +3,9 @@ package func.cron;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import models.User;
 
 import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.junit.Test;
@@ -11,19 +14,23 @@ import play.mvc.Http.Header;
 import play.mvc.Http.Request;
 import play.mvc.Http.Response;
 import rules.ChunkedRuleProcessor;
+import rules.RuleFanOut;
 import rules.RuleProcessor;
+import tasks.Lane;
+import tasks.Task;
 import unit.BaseTaskQueueTest;
 import unit.TestUtil;
 
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
 import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
 import com.google.appengine.api.taskqueue.dev.QueueStateInfo.HeaderWrapper;
 import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
 import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import common.request.Headers;
 
 
 /**
@@ -34,8 +41,9 @@ import com.google.common.collect.Maps;
 public class RuleProcessorTest extends BaseTaskQueueTest {
 
     private static final int USERS = 31;
-    private static final String QUEUE_NAME = ChunkedRuleProcessor.class.getSimpleName();
+    private static final String QUEUE_NAME = Lane.SCHEDULED.queueName;
     private static final int CHUNK_SIZE = 3;
+    private static final int SEGMENT_CHUNKS = 4;
 
     private LocalTaskQueue taskQueue;
 
@@ -70,44 +78,99 @@ public class RuleProcessorTest extends BaseTaskQueueTest {
         // 1. Run the RuleProcessor job once.
         runRuleProcessor();
 
-        // 2. Verify the number of enqueued tasks.
-        QueueStateInfo queueInfo = getQueueStateInfo();
-        int chunks = USERS / CHUNK_SIZE;
-        if ((USERS % CHUNK_SIZE) > 0) {
-            chunks++;
-        }
-        assertEquals(chunks, queueInfo.getCountTasks());
+        // 2. Run the fan out segments until there are none left.
+        assertEquals(3, runFanOut(1));
+
+        // 3. Verify the number of enqueued tasks.
+        List<TaskStateInfo> chunkTasks = getTasks(ChunkedRuleProcessor.class);
+        assertEquals(getNumChunks(), chunkTasks.size());
 
-        // 3. Manually processes the tasks
-        List<TaskStateInfo> states = queueInfo.getTaskInfo();
-        for (int i = 0; i < states.size(); i++) {
-            TaskStateInfo taskInfo = states.get(i);
+        // 4. Manually processes the tasks
+        Set<Key> seen = Sets.newHashSet();
+        int partial = 0;
+        for (TaskStateInfo taskInfo : chunkTasks) {
             Response response = executeTask(taskInfo);
             assertStatus(200, response);
             Map<String, List<String>> params = new QueryStringDecoder("http://dummy/a?" + taskInfo.getBody())
                 .getParameters();
-            Key first = KeyFactory.stringToKey(params.get(ChunkedRuleProcessor.pSTART_ID)
-                                                     .get(0));
-            Key last = KeyFactory.stringToKey(params.get(ChunkedRuleProcessor.pLAST_ID)
-                                                     .get(0));
-
-            int size = Iterables.size(ChunkedRuleProcessor.getUsersForKeyRange(first, last));
-            // Last chunk should contain leftover items, every other chunk should be full size.
-            int expected = ((i + 1) == states.size()) ? (USERS % CHUNK_SIZE) :
-                                                        CHUNK_SIZE;
-            assertEquals(String.format("Bad size. First key: %s Last key: %s", first, last),
-                         expected, size);
+            List<Key> keys = ChunkedRuleProcessor.decodeKeys(params.get(ChunkedRuleProcessor.pUSER_IDS)
+                                                                   .get(0));
+
+            int size = User.findByKeys(keys).size();
+            // One chunk should contain leftover items, every other chunk should be full size.
+            if (size != CHUNK_SIZE) {
+                assertEquals(String.format("Bad size. Keys: %s", keys), USERS % CHUNK_SIZE, size);
+                partial++;
+            }
+            seen.addAll(keys);
         }
+        assertEquals(USERS, seen.size());
+        assertEquals(1, partial);
     }
     
-    private QueueStateInfo getQueueStateInfo() {
-        Map<String, QueueStateInfo> allQueues = taskQueue.getQueueStateInfo();
-        return allQueues.get(QUEUE_NAME);
+    /**
+     * Overlapping runs for the same tick and retried segments must not queue
+     * any chunk twice.
+     */
+    @Test
+    public void testOverlappingRuns() throws Exception {
+        runRuleProcessor();
+        runRuleProcessor();
+        assertEquals(3, runFanOut(2));
+        assertEquals(getNumChunks(), getTasks(ChunkedRuleProcessor.class).size());
+    }
+
+    /**
+     * Run the fan out segments until there are none left.
+     *
+     * @param times number of times to run each segment
+     * @return number of segments
+     */
+    private int runFanOut(int times) {
+        int segments = 0;
+        List<TaskStateInfo> fanOutTasks;
+        while (! (fanOutTasks = getTasks(RuleFanOut.class)).isEmpty()) {
+            for (TaskStateInfo taskInfo : fanOutTasks) {
+                for (int i = 0; i < times; i++) {
+                    assertStatus(200, executeTask(taskInfo));
+                }
+                taskQueue.deleteTask(QUEUE_NAME, taskInfo.getTaskName());
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    private static int getNumChunks() {
+        int chunks = USERS / CHUNK_SIZE;
+        if ((USERS % CHUNK_SIZE) > 0) {
+            chunks++;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return tasks of the given type in the lane queue, which is shared by
+     *         several task types
+     */
+    private List<TaskStateInfo> getTasks(Class<? extends Task> taskClass) {
+        QueueStateInfo queueInfo = taskQueue.getQueueStateInfo().get(QUEUE_NAME);
+        List<TaskStateInfo> ret = Lists.newArrayList();
+        for (TaskStateInfo taskInfo : queueInfo.getTaskInfo()) {
+            for (HeaderWrapper header : taskInfo.getHeaders()) {
+                if (Headers.TASK_IMPL.equalsIgnoreCase(header.getKey()) &&
+                    taskClass.getName().equals(header.getValue())) {
+                    ret.add(taskInfo);
+                }
+            }
+        }
+        return ret;
     }
     
     private static void runRuleProcessor() {
         Map<String, String> jobData = Maps.newHashMap();
         jobData.put(RuleProcessor.CHUNK_SIZE, Integer.toString(CHUNK_SIZE));
+        jobData.put(RuleProcessor.SEGMENT_CHUNKS, Integer.toString(SEGMENT_CHUNKS));
         new RuleProcessor().execute(jobData);
     }
 
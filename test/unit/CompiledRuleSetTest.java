@@ -0,0 +1,119 @@
+package unit;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import models.Rule;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+import rules.CompiledRuleSet;
+import rules.RuleType;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for {@link CompiledRuleSet}.
+ */
+public class CompiledRuleSetTest extends UnitTest {
+    @Test
+    public void testEmpty() {
+        CompiledRuleSet rules = CompiledRuleSet.compile(Lists.<Rule>newArrayList());
+        assertTrue(rules.isEmpty());
+        assertNull(rules.firstMatch("foo.pdf"));
+        assertNull(rules.firstMatch((String) null));
+    }
+
+    @Test
+    public void testRankOrder() {
+        Rule glob = rule(RuleType.GLOB, "*.pdf");
+        Rule ext = rule(RuleType.EXT_EQ, "pdf");
+        Rule name = rule(RuleType.NAME_CONTAINS, "foo");
+        CompiledRuleSet rules = CompiledRuleSet.compile(Arrays.asList(glob, ext, name));
+
+        assertSame(glob, rules.firstMatch("foo.pdf"));
+        assertSame(name, rules.firstMatch("foo.txt"));
+        assertNull(rules.firstMatch("bar.txt"));
+
+        rules = CompiledRuleSet.compile(Arrays.asList(name, ext, glob));
+        assertSame(name, rules.firstMatch("foo.pdf"));
+        assertSame(ext, rules.firstMatch("bar.PDF"));
+    }
+
+    @Test
+    public void testOverlappingNames() {
+        Rule hers = rule(RuleType.NAME_CONTAINS, "HERS");
+        Rule she = rule(RuleType.NAME_CONTAINS, "she");
+        Rule he = rule(RuleType.NAME_CONTAINS, "he");
+        CompiledRuleSet rules = CompiledRuleSet.compile(Arrays.asList(hers, she, he));
+
+        assertSame(hers, rules.firstMatch("ushers"));
+        assertSame(she, rules.firstMatch("usher"));
+        assertSame(she, rules.firstMatch("ShE"));
+        assertSame(he, rules.firstMatch("ahex"));
+        assertNull(rules.firstMatch("hxe"));
+    }
+
+    @Test
+    public void testExtensionLists() {
+        Rule photos = rule(RuleType.EXT_EQ, "jpg, png ,gif");
+        Rule untrimmed = rule(RuleType.EXT_EQ, " doc");
+        CompiledRuleSet rules = CompiledRuleSet.compile(Arrays.asList(photos, untrimmed));
+
+        assertSame(photos, rules.firstMatch("a.PNG"));
+        assertSame(photos, rules.firstMatch("a.b.gif"));
+        assertNull(rules.firstMatch(".jpg"));
+        assertNull(rules.firstMatch("a.doc"));
+        assertSame(untrimmed, rules.firstMatch("a. doc"));
+    }
+
+    /**
+     * Compiled rules must pick the same rule as a linear scan.
+     */
+    @Test
+    public void testMatchesLinearScan() {
+        Random rand = new Random(45L);
+        String alphabet = "abAB.*? ,e";
+        for (int i = 0; i < 500; i++) {
+            List<Rule> ruleList = Lists.newArrayList();
+            int numRules = rand.nextInt(12);
+            for (int j = 0; j < numRules; j++) {
+                RuleType type = RuleType.values()[rand.nextInt(RuleType.values().length)];
+                ruleList.add(rule(type, randomString(rand, alphabet, rand.nextInt(4))));
+            }
+
+            CompiledRuleSet rules = CompiledRuleSet.compile(ruleList);
+            for (int j = 0; j < 20; j++) {
+                String fileName = randomString(rand, "abAB. ,e", rand.nextInt(9));
+                Rule expected = null;
+                for (Rule r : ruleList) {
+                    if (r.matches(fileName)) {
+                        expected = r;
+                        break;
+                    }
+                }
+
+                assertSame(String.format("Rules: %s File: '%s'", ruleList, fileName),
+                           expected, rules.firstMatch(fileName));
+            }
+        }
+    }
+
+    private static Rule rule(RuleType type, String pattern) {
+        Rule r = new Rule();
+        r.type = type;
+        r.pattern = pattern;
+        r.dest = "/tmp";
+        return r;
+    }
+
+    private static String randomString(Random rand, String alphabet, int length) {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            ret.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+        }
+        return ret.toString();
+    }
+}
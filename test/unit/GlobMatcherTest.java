@@ -0,0 +1,72 @@
+package unit;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+import rules.GlobMatcher;
+import rules.RuleUtils;
+
+/**
+ * Unit tests for {@link GlobMatcher}.
+ */
+public class GlobMatcherTest extends UnitTest {
+    /**
+     * Glob and text building blocks, including regex metacharacters, line
+     * terminators, non-ASCII letters, a surrogate pair and its unpaired
+     * halves.
+     */
+    private static final String[] TOKENS = {
+        "a", "A", "z", "Z", ".", "*", "?", "[", "]", "\\", "$", "^", "(", "|",
+        "+", "{", " ", "\n", "\r", "\u0085", "\u2028", "\u00e9", "\u00c9",
+        "\ud83d\ude00", "\ud83d", "\ude00"
+    };
+
+    @Test
+    public void testBasics() {
+        assertTrue(GlobMatcher.compile("*.PDF").matches("report.pdf"));
+        assertTrue(GlobMatcher.compile("Prince*.mp3").matches("prince - purple rain.MP3"));
+        assertTrue(GlobMatcher.compile("a**b").matches("ab"));
+        assertTrue(GlobMatcher.compile("foo[]").matches("foo[]"));
+        assertTrue(GlobMatcher.compile("?").matches("\ud83d\ude00"));
+        assertTrue(GlobMatcher.compile(null).matches(""));
+
+        assertFalse(GlobMatcher.compile("fo.o").matches("foxo"));
+        assertFalse(GlobMatcher.compile("*").matches("a\nb"));
+        assertFalse(GlobMatcher.compile("\u00e9").matches("\u00c9"));
+        assertFalse(GlobMatcher.compile("*").matches(null));
+        assertFalse(GlobMatcher.compile("\ud83d*").matches("\ud83d\ude00"));
+        assertFalse(GlobMatcher.compile("\ud83d?K").matches("\ud83d\ude00K"));
+        assertTrue(GlobMatcher.compile("\ud83d*").matches("\ud83dK"));
+    }
+
+    /**
+     * {@link GlobMatcher} must agree with the regex from
+     * {@link RuleUtils#getGlobPattern(String)} on every input.
+     */
+    @Test
+    public void testMatchesRegex() {
+        Random rand = new Random(45L);
+        for (int i = 0; i < 50000; i++) {
+            String glob = randomString(rand, rand.nextInt(7));
+            String text = randomString(rand, rand.nextInt(9));
+            if (rand.nextInt(3) == 0) {
+                // Make sure plenty of inputs actually match
+                text = glob.replace('*', 'x').replace('?', 'Z');
+            }
+
+            boolean expected = RuleUtils.getGlobPattern(glob).matcher(text).matches();
+            assertEquals(String.format("Glob: '%s' Text: '%s'", glob, text),
+                         expected, GlobMatcher.compile(glob).matches(text));
+        }
+    }
+
+    private static String randomString(Random rand, int tokens) {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            ret.append(TOKENS[rand.nextInt(TOKENS.length)]);
+        }
+        return ret.toString();
+    }
+}
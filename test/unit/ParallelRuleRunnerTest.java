@@ -0,0 +1,107 @@
+package unit;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.FileMove;
+import models.User;
+import models.User.AccountType;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+import rules.ParallelRuleRunner;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for {@link ParallelRuleRunner}.
+ */
+public class ParallelRuleRunnerTest extends UnitTest {
+    private static final long TIMEOUT_MILLIS = 500;
+
+    @Test
+    public void testAggregatesResults() throws Exception {
+        final User slow = user(1L);
+        final User broken = user(2L);
+        List<User> users = Lists.newArrayList(slow, broken, user(3L), user(4L), user(5L));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        ParallelRuleRunner runner = new ParallelRuleRunner(Executors.defaultThreadFactory(), 2, TIMEOUT_MILLIS,
+            new Function<User, List<FileMove>>() {
+                @Override
+                public List<FileMove> apply(User user) {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        if (user == slow) {
+                            Thread.sleep(TIMEOUT_MILLIS * 10);
+                        } else if (user == broken) {
+                            throw new IllegalStateException("Expected");
+                        } else {
+                            Thread.sleep(10);
+                        }
+                        return Collections.nCopies(user.id.intValue(), new FileMove());
+                    } catch (InterruptedException e) {
+                        return Collections.emptyList();
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+
+        ParallelRuleRunner.Result result = runner.run(users);
+        assertEquals(5, result.users);
+        assertEquals(3 + 4 + 5, result.moves);
+        assertEquals(Lists.newArrayList(broken), result.failed);
+        assertEquals(Lists.newArrayList(slow), result.timedOut);
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        List<User> users = Lists.newArrayList(user(1L), user(2L), user(3L), user(4L), user(5L));
+        ParallelRuleRunner runner = new ParallelRuleRunner(Executors.defaultThreadFactory(), 1, TIMEOUT_MILLIS,
+            new Function<User, List<FileMove>>() {
+                @Override
+                public List<FileMove> apply(User user) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        // Done anyway
+                    }
+                    return Collections.emptyList();
+                }
+            });
+
+        ParallelRuleRunner.Result result = runner.run(users, System.currentTimeMillis() + 120);
+        assertTrue(result.users > 0);
+        assertFalse(result.notStarted.isEmpty());
+        // Users not started are always the last ones
+        assertEquals(users.subList(result.users, users.size()), result.notStarted);
+
+        result = runner.run(users, System.currentTimeMillis() - 1);
+        assertEquals(0, result.users);
+        assertEquals(users, result.notStarted);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        ParallelRuleRunner runner = new ParallelRuleRunner(Executors.defaultThreadFactory(), 2, TIMEOUT_MILLIS);
+        ParallelRuleRunner.Result result = runner.run(Collections.<User>emptyList());
+        assertEquals(0, result.users);
+        assertEquals(0, result.moves);
+    }
+
+    private static User user(long id) {
+        User user = new User(AccountType.DROPBOX);
+        user.id = id;
+        return user;
+    }
+}
@@ -0,0 +1,74 @@
+package unit;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+import rules.ChunkedRuleProcessor;
+import rules.RuleFanOut;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for {@link RuleFanOut}.
+ */
+public class RuleFanOutTest extends UnitTest {
+    private static final int MAX_CHUNK_SIZE = 3;
+    private static final long BUDGET = 10000;
+
+    @Test
+    public void testUnknownCosts() {
+        List<Key> keys = keys(7);
+        List<List<Key>> chunks = RuleFanOut.packChunks(keys, Maps.<Key, Long>newHashMap(),
+                                                       MAX_CHUNK_SIZE, BUDGET);
+        assertEquals(Arrays.asList(keys.subList(0, 3), keys.subList(3, 6), keys.subList(6, 7)), chunks);
+    }
+
+    @Test
+    public void testPackByCost() {
+        List<Key> keys = keys(6);
+        Map<Key, Long> costs = Maps.newHashMap();
+        costs.put(keys.get(0), 4000L);
+        costs.put(keys.get(1), 5000L);
+        costs.put(keys.get(2), 2000L);
+        costs.put(keys.get(3), 30000L);
+        costs.put(keys.get(4), 100L);
+        costs.put(keys.get(5), 100L);
+
+        List<List<Key>> chunks = RuleFanOut.packChunks(keys, costs, MAX_CHUNK_SIZE, BUDGET);
+        // A user over the budget gets a chunk of their own
+        assertEquals(Arrays.asList(keys.subList(0, 2), keys.subList(2, 3), keys.subList(3, 4), keys.subList(4, 6)),
+                     chunks);
+        assertTrue(RuleFanOut.packChunks(ImmutableList.<Key>of(), costs, MAX_CHUNK_SIZE, BUDGET).isEmpty());
+    }
+
+    /**
+     * A retried segment that packs the same users differently must not have
+     * its chunks dropped as duplicates.
+     */
+    @Test
+    public void testChunkNames() {
+        List<Key> keys = keys(6);
+        String name = ChunkedRuleProcessor.newTask(0, keys.subList(0, 3), 1L).getTaskName();
+        assertEquals(name, ChunkedRuleProcessor.newTask(0, keys.subList(0, 3), 1L).getTaskName());
+        // Same content with a different chunk id is the same chunk
+        assertEquals(name, ChunkedRuleProcessor.newTask(5, keys.subList(0, 3), 1L).getTaskName());
+        assertFalse(name.equals(ChunkedRuleProcessor.newTask(0, keys.subList(0, 2), 1L).getTaskName()));
+        assertFalse(name.equals(ChunkedRuleProcessor.newTask(0, keys.subList(0, 3), 2L).getTaskName()));
+    }
+
+    private static List<Key> keys(int n) {
+        List<Key> keys = Lists.newArrayList();
+        for (int i = 1; i <= n; i++) {
+            keys.add(KeyFactory.createKey("User", i));
+        }
+        return keys;
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 import com.google.appengine.repackaged.com.google.common.base.Pair;
 
 import play.test.UnitTest;
+import rules.GlobMatcher;
 import rules.RuleUtils;
 
 public class RuleUtilsTest extends UnitTest {
@@ -62,6 +63,21 @@ public class RuleUtilsTest extends UnitTest {
         assertEquals("/a/B/C", RuleUtils.normalize("/a/B/C  ", false));
     }
 
+    @Test
+    public void testGlobMatcherCache() {
+        long hits = RuleUtils.getGlobCacheStats().hitCount();
+        GlobMatcher m = RuleUtils.getGlobMatcher("cache*test?");
+        assertSame(m, RuleUtils.getGlobMatcher("cache*test?"));
+        assertTrue(RuleUtils.getGlobCacheStats().hitCount() > hits);
+        assertTrue(RuleUtils.getGlobMatcher("a**b").matches("AxxB"));
+    }
+
+    @Test
+    public void testGlobPattern() {
+        assertEquals("cache.*test.", RuleUtils.getGlobPattern("cache***test?").pattern());
+        assertTrue(RuleUtils.getGlobPattern("a**b").matcher("AxxB").matches());
+    }
+
     @Test
     public void testGetParent() {
         assertEquals("/", RuleUtils.getParent("/a"));
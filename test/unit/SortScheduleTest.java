@@ -0,0 +1,96 @@
+package unit;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import models.User;
+import models.User.AccountType;
+
+import org.junit.Test;
+
+import play.cache.Cache;
+import play.test.UnitTest;
+import rules.SortSchedule;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Unit tests for {@link SortSchedule}.
+ */
+public class SortScheduleTest extends UnitTest {
+    private static final long TICK = SortSchedule.TICK_MILLIS;
+    private static final long NOW = 1000000 * TICK;
+
+    @Test
+    public void testGetTick() {
+        assertEquals(1000000, SortSchedule.getTick(NOW));
+        assertEquals(1000000, SortSchedule.getTick(NOW - 30 * 1000));
+        assertEquals(1000000, SortSchedule.getTick(NOW + 30 * 1000));
+        assertEquals(1000001, SortSchedule.getTick(NOW + TICK));
+    }
+
+    @Test
+    public void testGetPeriod() {
+        assertEquals(1, SortSchedule.getPeriod(new Date(NOW), NOW));
+        assertEquals(1, SortSchedule.getPeriod(new Date(NOW - 7 * TICK), NOW));
+        assertEquals(2, SortSchedule.getPeriod(new Date(NOW - 8 * TICK), NOW));
+        // Idle for a day
+        assertEquals(16, SortSchedule.getPeriod(new Date(NOW - 96 * TICK), NOW));
+        assertEquals(64, SortSchedule.getPeriod(new Date(NOW - 383 * TICK), NOW));
+        assertEquals(SortSchedule.MAX_PERIOD_TICKS,
+                     SortSchedule.getPeriod(new Date(NOW - 384 * TICK), NOW));
+        assertEquals(SortSchedule.MAX_PERIOD_TICKS,
+                     SortSchedule.getPeriod(new Date(NOW - 365 * 96 * TICK), NOW));
+        assertEquals(SortSchedule.MAX_PERIOD_TICKS, SortSchedule.getPeriod(null, NOW));
+    }
+
+    @Test
+    public void testIsDue() {
+        long tick = SortSchedule.getTick(NOW);
+        for (long id = 0; id < 50; id++) {
+            User idle = user(id, null);
+            int due = 0;
+            for (long t = tick; t < tick + SortSchedule.MAX_PERIOD_TICKS; t++) {
+                assertTrue(SortSchedule.isDue(user(id, new Date(t * TICK)), t));
+                if (SortSchedule.isDue(idle, t)) {
+                    due++;
+                }
+            }
+            assertEquals("Idle users are sorted once a day", 1, due);
+        }
+    }
+
+    @Test
+    public void testFilterDue() {
+        Cache.clear();
+        long tick = SortSchedule.getTick(NOW);
+        User recent = user(1L, new Date(NOW - 20 * TICK));
+        User idle = user(2L, null);
+        User box = user(AccountType.BOX, 3L, new Date(NOW - 200 * TICK));
+        Key unknown = User.key(AccountType.DROPBOX, 4L);
+        SortSchedule.remember(Arrays.asList(recent, idle, box));
+
+        List<Key> keys = Arrays.asList(recent.getKey(), idle.getKey(), box.getKey(), unknown);
+        for (long t = tick; t < tick + SortSchedule.MAX_PERIOD_TICKS; t++) {
+            List<Key> due = SortSchedule.filterDue(keys, t);
+            for (User user : Arrays.asList(recent, idle, box)) {
+                assertEquals(SortSchedule.isDue(user, t), due.contains(user.getKey()));
+            }
+            // Users that aren't cached are always due
+            assertTrue(due.contains(unknown));
+        }
+    }
+
+    private static User user(long id, Date lastActive) {
+        return user(AccountType.DROPBOX, id, lastActive);
+    }
+
+    private static User user(AccountType accountType, long id, Date lastActive) {
+        User user = new User(accountType);
+        user.id = id;
+        user.lastActive = lastActive;
+        user.lastLogin = null;
+        return user;
+    }
+}
@@ -0,0 +1,76 @@
+package unit.common.stats;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+
+import common.stats.HyperLogLog;
+
+/**
+ * Unit tests for {@link HyperLogLog}
+ */
+public class HyperLogLogTest extends UnitTest {
+
+    @Test
+    public void testEstimate() {
+        HyperLogLog sketch = new HyperLogLog();
+        assertEquals(0, sketch.estimate());
+
+        for (int i = 0; i < 10; i++) {
+            // Adding a value again doesn't change the sketch
+            assertTrue(sketch.add("user" + i));
+            assertFalse(sketch.add("user" + i));
+        }
+        assertEquals(10, sketch.estimate());
+
+        for (int i = 10; i < 100000; i++) {
+            sketch.add("user" + i);
+        }
+        assertError(100000, sketch.estimate());
+    }
+
+    @Test
+    public void testMerge() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        HyperLogLog union = new HyperLogLog();
+        for (int i = 0; i < 30000; i++) {
+            a.add(i);
+            union.add(i);
+        }
+        for (int i = 20000; i < 50000; i++) {
+            b.add(i);
+            union.add(i);
+        }
+
+        assertTrue(a.merge(b));
+        assertEquals(union, a);
+        assertError(50000, a.estimate());
+        assertFalse(a.merge(b));
+    }
+
+    @Test
+    public void testBytes() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(i);
+        }
+        byte[] bytes = sketch.toBytes();
+        assertEquals(HyperLogLog.NUM_REGISTERS, bytes.length);
+        assertEquals(sketch, HyperLogLog.fromBytes(bytes));
+
+        try {
+            HyperLogLog.fromBytes(new byte[10]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Standard error is about 1.6%, allow three times that.
+     */
+    private static void assertError(long expected, long actual) {
+        assertTrue("Estimate: " + actual, Math.abs(actual - expected) <= expected * 0.05);
+    }
+}
@@ -7,6 +7,8 @@ import models.DatastoreUtil;
 import org.joda.time.DateTime;
 import org.junit.Test;
 
+import com.google.common.collect.Iterables;
+
 /**
  * Tests for {@link DatastoreUtil}
  * 
@@ -32,4 +34,26 @@ public class DatastoreUtilTest extends BaseModelTest {
         assertEquals(1, DatastoreUtil.count("created", d3, d3, DailyUsageStats.all()));
     }
 
+    @Test
+    public void testQueryLimit() {
+        Date now = new Date();
+        DatastoreUtil.put(Arrays.asList(new DailyUsageStats(1L, 1L, 1L, 1L, now),
+                                        new DailyUsageStats(2L, 2L, 2L, 2L, now),
+                                        new DailyUsageStats(3L, 3L, 3L, 3L, now)),
+                          DailyUsageStats.MAPPER);
+
+        assertEquals(2, Iterables.size(DatastoreUtil.query(DailyUsageStats.all(),
+                                                           DatastoreUtil.withPrefetch(2),
+                                                           DailyUsageStats.MAPPER)));
+        assertEquals(2, Iterables.size(DatastoreUtil.queryKeys(DailyUsageStats.all(),
+                                                               DatastoreUtil.withPrefetch(2),
+                                                               DailyUsageStats.MAPPER)));
+        assertEquals(3, Iterables.size(DatastoreUtil.queryKeys(DailyUsageStats.all(),
+                                                               DatastoreUtil.bulk(),
+                                                               DailyUsageStats.MAPPER)));
+        assertEquals(0, Iterables.size(DatastoreUtil.query(DailyUsageStats.all(),
+                                                           DatastoreUtil.withPrefetch(0),
+                                                           DailyUsageStats.MAPPER)));
+    }
+
 }
@@ -0,0 +1,27 @@
+package unit.models;
+
+import models.ShardedCounter;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ShardedCounter}.
+ */
+public class ShardedCounterTest extends BaseModelTest {
+
+    @Test
+    public void testIncrement() {
+        ShardedCounter counter = new ShardedCounter("testIncrement", 3);
+        assertEquals(0, counter.get());
+
+        for (int i = 1; i <= 10; i++) {
+            counter.increment(i);
+        }
+        assertEquals(55, counter.get());
+        // Another instance reads the same shards
+        assertEquals(55, new ShardedCounter("testIncrement", 3).get());
+
+        counter.delete();
+        assertEquals(0, counter.get());
+    }
+}
@@ -1,10 +1,12 @@
 package unit.models;
 
+import java.util.Arrays;
 import java.util.Date;
 
 import models.User;
 import models.User.AccountType;
 
+import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,6 +14,7 @@ import org.junit.Test;
 import play.cache.Cache;
 import unit.TestUtil;
 
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 
 import dropbox.Dropbox;
@@ -131,6 +134,63 @@ public class UserTest extends BaseModelTest {
         assertEquals(User.findById(AccountType.DROPBOX, ID), user);
     }
     
+    @Test
+    public void testFindByKeys() {
+        User user = newUser();
+        user.save();
+        Key key = User.key(AccountType.DROPBOX, ID);
+        Key missing = User.key(AccountType.DROPBOX, ID2);
+
+        // Misses are read from the datastore and cached
+        assertEquals(Arrays.asList(user), User.findByKeys(Arrays.asList(missing, key)));
+        assertEquals(user, Cache.get(KeyFactory.keyToString(key)));
+
+        User user2 = newUser();
+        user2.setName(NAME + "x");
+        Cache.set(KeyFactory.keyToString(key), user2);
+        assertEquals(Arrays.asList(user2), User.findByKeys(Arrays.asList(key)));
+    }
+
+    @Test
+    public void testLastSyncGranularity() {
+        User user = newUser();
+        user.save();
+        assertFalse(user.saveIfDirty());
+
+        user.updateLastSyncDate();
+        assertTrue(user.saveIfDirty());
+
+        // A slightly newer date alone isn't written
+        Date synced = user.lastSync;
+        user.updateLastSyncDate();
+        assertFalse(user.saveIfDirty());
+        assertEquals(synced, User.findById(AccountType.DROPBOX, ID).lastSync);
+
+        // but it is with other changes
+        user.markDirty();
+        assertTrue(user.saveIfDirty());
+        assertEquals(user.lastSync, User.findById(AccountType.DROPBOX, ID).lastSync);
+
+        user.lastSync = new DateTime(user.lastSync).minusHours(2).toDate();
+        user.updateLastSyncDate();
+        assertTrue(user.saveIfDirty());
+    }
+
+    @Test
+    public void testLastActiveGranularity() {
+        User user = newUser();
+        user.save();
+
+        // Users are active when created
+        user.updateLastActive();
+        assertFalse(user.saveIfDirty());
+
+        user.lastActive = new DateTime(user.lastActive).minusHours(2).toDate();
+        user.updateLastActive();
+        assertTrue(user.saveIfDirty());
+        assertEquals(user.lastActive, User.findById(AccountType.DROPBOX, ID).lastActive);
+    }
+
     @Test
     public void testSortingFolderUpdate() {
     	//set the sortingFolder to null for existing users